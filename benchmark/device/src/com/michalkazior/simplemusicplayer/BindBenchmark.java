@@ -0,0 +1,89 @@
+package com.michalkazior.simplemusicplayer;
+
+import java.util.Arrays;
+
+import android.content.Context;
+import android.os.Debug;
+import android.view.View;
+import android.view.View.MeasureSpec;
+import android.widget.BaseAdapter;
+import android.widget.LinearLayout;
+
+/**
+ * Binding list rows, see LibraryAdapter and SongAdapter.
+ * 
+ * Rows are bound into a single recycled view, the way ListView does while
+ * scrolling. Once that view is set up, binding a row must not allocate.
+ * 
+ * Like ListView, each bound row is measured and laid out. Without that
+ * TextView defers its layout work, and binding would look cheaper than it
+ * is.
+ */
+public class BindBenchmark extends DeviceBenchmark {
+	private static final int rows = 1000;
+	private static final int widthSpec = MeasureSpec.makeMeasureSpec(480, MeasureSpec.EXACTLY);
+	private static final int heightSpec = MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED);
+
+	private Context context;
+	private LinearLayout parent;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		context = getInstrumentation().getTargetContext();
+		parent = new LinearLayout(context);
+	}
+
+	public void testLibraryAdapter() {
+		int[] all = new int[rows];
+		for (int i = 0; i < rows; i++) {
+			all[i] = i;
+		}
+		LibraryAdapter adapter = new LibraryAdapter(context);
+		adapter.setItems(store(rows), all);
+		run("libraryRow", adapter);
+
+		/* A click and its context menu ask for the same item */
+		assertSame(adapter.getItem(rows / 2), adapter.getItem(rows / 2));
+	}
+
+	public void testSongAdapter() {
+		run("queueRow", new SongAdapter(context, Arrays.asList(songs(rows))));
+	}
+
+	private void run(String name, final BaseAdapter adapter) {
+		final View v = adapter.getView(0, null, parent);
+		assertEquals(name + " allocations", 0, allocations(name, adapter, v));
+		measure(name, rows, new Runnable() {
+			@Override
+			public void run() {
+				bindAll(adapter, v);
+			}
+		});
+	}
+
+	/**
+	 * Count objects allocated while binding every row into v.
+	 * 
+	 * All rows are bound once before counting, so that whatever the views
+	 * create on first use isn't counted.
+	 */
+	private int allocations(String name, BaseAdapter adapter, View v) {
+		bindAll(adapter, v);
+		Debug.resetThreadAllocCount();
+		Debug.startAllocCounting();
+		bindAll(adapter, v);
+		Debug.stopAllocCounting();
+		int count = Debug.getThreadAllocCount();
+		report(name + "Allocations", count, "objects");
+		return count;
+	}
+
+	private void bindAll(BaseAdapter adapter, View v) {
+		for (int i = 0; i < adapter.getCount(); i++) {
+			adapter.getView(i, v, parent);
+			v.measure(widthSpec, heightSpec);
+			v.layout(0, 0, v.getMeasuredWidth(), v.getMeasuredHeight());
+		}
+	}
+}
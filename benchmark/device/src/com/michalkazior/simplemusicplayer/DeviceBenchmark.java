@@ -0,0 +1,76 @@
+package com.michalkazior.simplemusicplayer;
+
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+/**
+ * Base of the benchmarks which need a device.
+ * 
+ * These run as instrumentation tests inside the app's process, so package
+ * private classes are reachable. Results are logged under TAG, run them with
+ * 
+ * adb shell am instrument -w
+ * com.michalkazior.simplemusicplayer.benchmark/android.test.InstrumentationTestRunner
+ * 
+ * and collect them next to the JMH results with
+ * 
+ * adb logcat -d -s DeviceBenchmark:I > benchmark/results/device-<timestamp>.txt
+ * 
+ * so that runs can be compared the same way.
+ */
+public abstract class DeviceBenchmark extends InstrumentationTestCase {
+	private static final String TAG = "DeviceBenchmark";
+
+	/**
+	 * Runs done before measuring, so that the JIT (from 2.2 on) has compiled
+	 * the code under test.
+	 */
+	private static final int warmupRuns = 3;
+	private static final int runs = 10;
+
+	/**
+	 * Time an operation and report the mean time per op.
+	 * 
+	 * @param ops
+	 *            number of ops a single run of r does
+	 */
+	protected void measure(String name, int ops, Runnable r) {
+		for (int i = 0; i < warmupRuns; i++) {
+			r.run();
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < runs; i++) {
+			r.run();
+		}
+		report(name, (System.nanoTime() - start) / runs / ops, "ns");
+	}
+
+	protected void report(String name, long value, String unit) {
+		Log.i(TAG, getClass().getSimpleName() + "." + name + ": " + value + " " + unit);
+	}
+
+	/**
+	 * Build a store of n songs, about ten per directory.
+	 */
+	static SongStore store(int n) {
+		SongStore.Builder builder = new SongStore.Builder();
+		for (int i = 0; i < n; i++) {
+			String name = String.format("%02d Song %d.mp3", i % 10 + 1, i);
+			builder.add(i, "/sdcard/Music/Artist " + i / 100 + "/Album " + i / 10 + "/" + name,
+					i % 4 == 0 ? null : name);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Create n songs as the UI would enqueue them.
+	 */
+	static Song[] songs(int n) {
+		SongStore store = store(n);
+		Song[] songs = new Song[n];
+		for (int i = 0; i < n; i++) {
+			songs[i] = new Song(store.getPath(i), store.getTitle(i));
+		}
+		return songs;
+	}
+}
@@ -0,0 +1,95 @@
+package com.michalkazior.simplemusicplayer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.os.Parcel;
+
+/**
+ * Sending the queue to another process: parceled songs against
+ * SnapshotCodec.
+ * 
+ * parcel is what putting the songs into Message data costs, a Parcel round
+ * trip of writeParcelableArray() and readParcelableArray(). codec is the
+ * encoding shared by Player.shareQueue() instead, writeQueue() and
+ * readQueue(). shared adds pack() and unpack(), which go through a mapped
+ * file once the encoding is larger than SnapshotCodec.inlineLimit.
+ * 
+ * The sizes of both encodings are reported too, binder transactions are
+ * limited to 1MB.
+ */
+public class ParcelBenchmark extends DeviceBenchmark {
+	private static final int[] sizes = { 100, 1000, 10000 };
+
+	private File file;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		file = new File(getInstrumentation().getTargetContext().getCacheDir(), "queue.bench");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+		super.tearDown();
+	}
+
+	public void testQueue() throws IOException {
+		for (int size : sizes) {
+			run(size, new QueueSnapshot(songs(size), 0, 1));
+		}
+	}
+
+	private void run(int size, final QueueSnapshot queue) throws IOException {
+		Parcel p = Parcel.obtain();
+		p.writeParcelableArray(queue.getSongs(), 0);
+		report("parcelBytes" + size, p.dataSize(), "bytes");
+		p.recycle();
+		report("codecBytes" + size, encode(queue).length, "bytes");
+
+		measure("parcel" + size, 1, new Runnable() {
+			@Override
+			public void run() {
+				Parcel p = Parcel.obtain();
+				p.writeParcelableArray(queue.getSongs(), 0);
+				p.setDataPosition(0);
+				assertEquals(queue.size(), p.readParcelableArray(Song.class.getClassLoader()).length);
+				p.recycle();
+			}
+		});
+		measure("codec" + size, 1, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					assertEquals(queue.size(), SnapshotCodec.readQueue(
+							ByteBuffer.wrap(encode(queue))).size());
+				}
+				catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+		measure("shared" + size, 1, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					assertEquals(queue.size(), SnapshotCodec.readQueue(
+							SnapshotCodec.unpack(SnapshotCodec.pack(encode(queue), file))).size());
+				}
+				catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+	}
+
+	private static byte[] encode(QueueSnapshot queue) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		SnapshotCodec.writeQueue(new DataOutputStream(buffer), queue);
+		return buffer.toByteArray();
+	}
+}
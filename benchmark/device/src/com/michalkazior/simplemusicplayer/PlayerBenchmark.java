@@ -0,0 +1,146 @@
+package com.michalkazior.simplemusicplayer;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.IBinder;
+import android.os.SystemClock;
+
+/**
+ * Queue commands through Player's playback thread.
+ * 
+ * The Player of the app under test is bound the way SongQueue binds it. Its
+ * queue is replaced while the benchmark runs and put back afterwards, with
+ * the playback stopped, so don't run it while listening.
+ * 
+ * Commands are asynchronous. A run sends a batch and then waits until the
+ * published queue shows a marker song enqueued after the batch, so the time
+ * includes handling and publishing the commands, but not the clients.
+ */
+public class PlayerBenchmark extends DeviceBenchmark {
+	private static final int size = 1000;
+	private static final int ops = 1000;
+	private static final int timeout = 10000;
+
+	private Context context;
+	private ServiceConnection connection;
+	private Player player;
+	private Song[] saved;
+	private Song[] songs;
+	private Song marker = new Song("/sdcard/Music/marker.mp3", null);
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		context = getInstrumentation().getTargetContext();
+
+		final CountDownLatch bound = new CountDownLatch(1);
+		connection = new ServiceConnection() {
+			@Override
+			public void onServiceConnected(ComponentName name, IBinder service) {
+				player = ((Player.Proxy) service).getPlayer();
+				bound.countDown();
+			}
+
+			@Override
+			public void onServiceDisconnected(ComponentName name) {
+			}
+		};
+		context.bindService(new Intent(context, Player.class), connection,
+				Context.BIND_AUTO_CREATE);
+		assertTrue("Can't bind the Player", bound.await(timeout, TimeUnit.MILLISECONDS));
+
+		saved = player.getQueue().getSongs();
+		songs = songs(size);
+		player.reset();
+		player.setEnqueuedSongs(songs);
+		sync();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		player.setEnqueuedSongs(saved);
+		sync();
+		context.unbindService(connection);
+		super.tearDown();
+	}
+
+	/**
+	 * enqueueSong() at the end, then removeSong().
+	 */
+	public void testEnqueue() {
+		final Song[] extra = songs(ops);
+		measure("enqueue", 2 * ops, new Runnable() {
+			@Override
+			public void run() {
+				for (Song song : extra) {
+					player.enqueueSong(song, -1);
+				}
+				for (Song song : extra) {
+					player.removeSong(song);
+				}
+				sync();
+			}
+		});
+	}
+
+	/**
+	 * moveSong() by half the queue.
+	 */
+	public void testMove() {
+		measure("move", ops, new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < ops; i++) {
+					player.moveSong(songs[i % size], i % 2 == 0 ? size / 2 : -size / 2);
+				}
+				sync();
+			}
+		});
+	}
+
+	/**
+	 * permuteEnqueuedSongs(), as Shuffle does.
+	 */
+	public void testShuffle() {
+		final Random random = new Random(size);
+		final int[] permutation = new int[size];
+		measure("shuffle", 1, new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < size; i++) {
+					int j = random.nextInt(i + 1);
+					permutation[i] = permutation[j];
+					permutation[j] = i;
+				}
+				player.permuteEnqueuedSongs(permutation);
+				sync();
+			}
+		});
+	}
+
+	/**
+	 * Wait until the commands sent so far have been handled and published.
+	 */
+	private void sync() {
+		int n = player.getQueue().size();
+		player.enqueueSong(marker, -1);
+		await(n + 1);
+		player.removeSong(marker);
+		await(n);
+	}
+
+	private void await(int n) {
+		long deadline = SystemClock.uptimeMillis() + timeout;
+		while (player.getQueue().size() != n) {
+			if (SystemClock.uptimeMillis() > deadline) fail("Queue stuck at "
+					+ player.getQueue().size() + " songs, expected " + n);
+			SystemClock.sleep(1);
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package com.michalkazior.simplemusicplayer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.media.MediaPlayer;
+import android.media.MediaPlayer.OnCompletionListener;
+import android.media.MediaPlayer.OnErrorListener;
+import android.media.MediaPlayer.OnPreparedListener;
+
+/**
+ * Switching tracks with and without reusing MediaPlayer instances.
+ * 
+ * Each op is what Player does on a track switch when the next song hasn't
+ * been prepared ahead: the previous player is done with and the new song is
+ * prepared. newPlayer is how it was done before players were pooled, a new
+ * instance with new listeners for every track. pooledPlayer is what
+ * obtainMediaPlayer() and recycleMediaPlayer() do now. A single run thus
+ * gives both the baseline and the pooled figure, on the same device.
+ * 
+ * The song is a short generated WAV file, so the time is dominated by the
+ * player itself rather than by decoding. Player prepares asynchronously,
+ * here prepare() is used as there's no looper to get the callback on.
+ */
+public class SwitchBenchmark extends DeviceBenchmark {
+	private static final int switches = 20;
+
+	private File file;
+	private FileInputStream in;
+	private MediaPlayer mp;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		file = new File(getInstrumentation().getTargetContext().getCacheDir(), "switch.wav");
+		writeSilence(file, 8000);
+		in = new FileInputStream(file);
+		mp = new MediaPlayer();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mp.release();
+		in.close();
+		file.delete();
+		super.tearDown();
+	}
+
+	public void testNewPlayer() {
+		measure("newPlayer", switches, new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < switches; i++) {
+					mp.reset();
+					mp.release();
+					mp = new MediaPlayer();
+					mp.setOnCompletionListener(new OnCompletionListener() {
+						@Override
+						public void onCompletion(MediaPlayer mp) {
+						}
+					});
+					mp.setOnErrorListener(new OnErrorListener() {
+						@Override
+						public boolean onError(MediaPlayer mp, int what, int extra) {
+							return false;
+						}
+					});
+					mp.setOnPreparedListener(new OnPreparedListener() {
+						@Override
+						public void onPrepared(MediaPlayer mp) {
+						}
+					});
+					prepare();
+				}
+			}
+		});
+	}
+
+	public void testPooledPlayer() {
+		measure("pooledPlayer", switches, new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < switches; i++) {
+					mp.reset();
+					prepare();
+				}
+			}
+		});
+	}
+
+	private void prepare() {
+		try {
+			mp.setDataSource(in.getFD());
+			mp.prepare();
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Write a second of 16 bit mono silence as a WAV file.
+	 */
+	private static void writeSilence(File file, int rate) throws IOException {
+		int size = rate * 2;
+		byte[] b = new byte[44 + size];
+		put(b, 0, 0x46464952); /* RIFF */
+		put(b, 4, 36 + size);
+		put(b, 8, 0x45564157); /* WAVE */
+		put(b, 12, 0x20746d66); /* fmt */
+		put(b, 16, 16);
+		put(b, 20, 1 | 1 << 16); /* PCM, mono */
+		put(b, 24, rate);
+		put(b, 28, rate * 2);
+		put(b, 32, 2 | 16 << 16); /* block align, bits per sample */
+		put(b, 36, 0x61746164); /* data */
+		put(b, 40, size);
+
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(b);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	private static void put(byte[] b, int offset, int value) {
+		for (int i = 0; i < 4; i++) {
+			b[offset + i] = (byte) (value >> 8 * i);
+		}
+	}
+}
@@ -0,0 +1,264 @@
+package com.michalkazior.simplemusicplayer;
+
+import android.content.ContentResolver;
+import android.database.CharArrayBuffer;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.DataSetObserver;
+import android.net.Uri;
+import android.os.Bundle;
+
+/**
+ * Cursor over arrays, with the columns of Library's projection: _ID, DATA,
+ * DISPLAY_NAME, DATE_ADDED, DATE_MODIFIED.
+ * 
+ * Only what CursorReader calls is implemented. rewind() makes the cursor
+ * reusable, so a benchmark doesn't measure building it.
+ */
+class FakeCursor implements Cursor {
+	private final int[] ids;
+	private final String[] paths;
+	private final String[] titles;
+	private final long[] added;
+	private final long[] modified;
+	private int position = -1;
+
+	FakeCursor(int[] ids, String[] paths, String[] titles, long[] added, long[] modified) {
+		this.ids = ids;
+		this.paths = paths;
+		this.titles = titles;
+		this.added = added;
+		this.modified = modified;
+	}
+
+	/**
+	 * Cursor over all rows of a store, as the full query returns them.
+	 */
+	static FakeCursor of(SongStore store) {
+		int n = store.size();
+		int[] ids = new int[n];
+		String[] paths = new String[n];
+		String[] titles = new String[n];
+		long[] dates = new long[n];
+		for (int i = 0; i < n; i++) {
+			ids[i] = store.getId(i);
+			paths[i] = store.getPath(i);
+			titles[i] = store.getTitle(i);
+			dates[i] = n - i;
+		}
+		return new FakeCursor(ids, paths, titles, dates, dates);
+	}
+
+	FakeCursor rewind() {
+		position = -1;
+		return this;
+	}
+
+	@Override
+	public int getCount() {
+		return ids.length;
+	}
+
+	@Override
+	public int getPosition() {
+		return position;
+	}
+
+	@Override
+	public boolean moveToNext() {
+		if (position < ids.length) position++;
+		return position < ids.length;
+	}
+
+	@Override
+	public int getInt(int column) {
+		if (column != 0) throw new IllegalArgumentException("Not an int column " + column);
+		return ids[position];
+	}
+
+	@Override
+	public long getLong(int column) {
+		switch (column) {
+			case 0:
+				return ids[position];
+			case 3:
+				return added[position];
+			case 4:
+				return modified[position];
+		}
+		throw new IllegalArgumentException("Not a long column " + column);
+	}
+
+	@Override
+	public String getString(int column) {
+		switch (column) {
+			case 1:
+				return paths[position];
+			case 2:
+				return titles[position];
+		}
+		throw new IllegalArgumentException("Not a string column " + column);
+	}
+
+	@Override
+	public boolean isNull(int column) {
+		return column == 2 && titles[position] == null;
+	}
+
+	@Override
+	public int getColumnCount() {
+		return 5;
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public boolean isClosed() {
+		return false;
+	}
+
+	/*
+	 * Not used by CursorReader.
+	 */
+
+	@Override
+	public boolean move(int offset) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean moveToPosition(int position) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean moveToFirst() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean moveToLast() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean moveToPrevious() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean isFirst() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean isLast() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean isBeforeFirst() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean isAfterLast() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public int getColumnIndex(String columnName) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public int getColumnIndexOrThrow(String columnName) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public String getColumnName(int columnIndex) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public String[] getColumnNames() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public byte[] getBlob(int columnIndex) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public short getShort(int columnIndex) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public float getFloat(int columnIndex) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public double getDouble(int columnIndex) {
+		throw new UnsupportedOperationException();
+	}
+
+	/* Cursor.getType() is API level 11, hence no @Override */
+	public int getType(int columnIndex) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void deactivate() {
+	}
+
+	@Override
+	public boolean requery() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void registerContentObserver(ContentObserver observer) {
+	}
+
+	@Override
+	public void unregisterContentObserver(ContentObserver observer) {
+	}
+
+	@Override
+	public void registerDataSetObserver(DataSetObserver observer) {
+	}
+
+	@Override
+	public void unregisterDataSetObserver(DataSetObserver observer) {
+	}
+
+	@Override
+	public void setNotificationUri(ContentResolver cr, Uri uri) {
+	}
+
+	@Override
+	public boolean getWantsAllOnMoveCalls() {
+		return false;
+	}
+
+	@Override
+	public Bundle getExtras() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Bundle respond(Bundle extras) {
+		throw new UnsupportedOperationException();
+	}
+}
@@ -0,0 +1,93 @@
+package com.michalkazior.simplemusicplayer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * SongList's filter: building the index and answering queries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FilterBenchmark {
+	/*
+	 * A phrase as it grows while being typed.
+	 */
+	private static final String[] typed = { "r", "ro", "roc", "rock", "rock ", "rock n",
+			"rock ni", "rock nig", "rock nigh", "rock night", };
+
+	@Param({ "1000", "20000", "200000" })
+	int size;
+
+	private SongStore store;
+	private SongIndex index;
+
+	@Setup
+	public void setUp() {
+		store = Libraries.store(size);
+		index = new SongIndex(store);
+	}
+
+	@Benchmark
+	public SongIndex buildIndex() {
+		return new SongIndex(store);
+	}
+
+	@Benchmark
+	public int[] oneWord() {
+		return index.find(SongIndex.tokenize("ro"), null);
+	}
+
+	@Benchmark
+	public int[] twoWords() {
+		return index.find(SongIndex.tokenize("rock night"), null);
+	}
+
+	/**
+	 * Every keystroke of a phrase, narrowing the previous result as
+	 * SongList does.
+	 */
+	@Benchmark
+	public void typing(Blackhole bh) {
+		SongIndex.Filter filter = index.new Filter();
+		for (String phrase : typed) {
+			bh.consume(filter.apply(phrase));
+		}
+	}
+
+	/**
+	 * The first ranked page of a broad query, as SongList shows it.
+	 */
+	@Benchmark
+	public int[] rankFirstPage() {
+		return index.new Filter().rank("ro").next(100);
+	}
+
+	/**
+	 * Matching every row without the index, for comparison.
+	 */
+	@Benchmark
+	public int scan() {
+		String[] words = SongIndex.tokenize("rock night");
+		int n = 0;
+		for (int i = 0; i < store.size(); i++) {
+			if (SongIndex.matches(store, i, words)) n++;
+		}
+		return n;
+	}
+}
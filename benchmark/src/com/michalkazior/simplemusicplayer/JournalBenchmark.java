@@ -0,0 +1,87 @@
+package com.michalkazior.simplemusicplayer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Persisting the queue: a journal record per edit and the compactions.
+ * 
+ * Files go to java.io.tmpdir, so the numbers depend on its file system.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class JournalBenchmark {
+	@Param({ "100", "1000", "10000" })
+	int size;
+
+	private File dir;
+	private QueueJournal journal;
+	private Song[] songs;
+
+	@Setup
+	public void setUp() throws IOException {
+		dir = File.createTempFile("journal", null);
+		dir.delete();
+		dir.mkdir();
+		songs = Libraries.songs(size);
+		journal = new QueueJournal(dir);
+		journal.restore();
+		journal.compact(songs, 0);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		journal.close();
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	/**
+	 * The record of a moveSong(). The journal is compacted now and then, as
+	 * Player does, so it doesn't grow without bounds.
+	 */
+	@Benchmark
+	public void moved() throws IOException {
+		journal.moved(0, size - 1);
+		if (journal.getRecordCount() > 256 + size) journal.compact(songs, 0);
+	}
+
+	@Benchmark
+	public void compact() throws IOException {
+		journal.compact(songs, 0);
+	}
+
+	/**
+	 * Reading the queue at startup, which compacts as well.
+	 */
+	@Benchmark
+	public QueueSnapshot restore() throws IOException {
+		QueueJournal other = new QueueJournal(dir);
+		try {
+			return other.restore();
+		}
+		finally {
+			other.close();
+		}
+	}
+}
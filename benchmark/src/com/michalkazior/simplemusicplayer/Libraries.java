@@ -0,0 +1,58 @@
+package com.michalkazior.simplemusicplayer;
+
+import java.util.Random;
+
+/**
+ * Synthetic media libraries for the benchmarks.
+ * 
+ * Paths look like /sdcard/Music/Artist/Album/NN Title.mp3 with about ten
+ * songs per album and a few albums per artist. Words are drawn from a small
+ * vocabulary, so queries match a realistic share of songs. The same size
+ * always gives the same library.
+ */
+class Libraries {
+	static final String[] words = { "love", "night", "rock", "blue", "heart", "dance", "fire",
+			"rain", "summer", "dream", "road", "home", "light", "city", "gold", "river", "time",
+			"moon", "wild", "sky", "song", "star", "girl", "world", };
+
+	private Libraries() {
+	}
+
+	/**
+	 * Build a store of n songs, as Library's full query would.
+	 */
+	static SongStore store(int n) {
+		SongStore.Builder builder = new SongStore.Builder();
+		Random random = new Random(n);
+		String dir = null;
+		for (int i = 0; i < n; i++) {
+			if (i % 10 == 0) {
+				dir = "/sdcard/Music/" + phrase(random, 2) + "/" + phrase(random, 3);
+			}
+			String name = String.format("%02d %s.mp3", i % 10 + 1, phrase(random, 3));
+			builder.add(i, dir + "/" + name, i % 4 == 0 ? null : name);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Create n songs as the UI would enqueue them.
+	 */
+	static Song[] songs(int n) {
+		SongStore store = store(n);
+		Song[] songs = new Song[n];
+		for (int i = 0; i < n; i++) {
+			songs[i] = new Song(store.getPath(i), store.getTitle(i));
+		}
+		return songs;
+	}
+
+	private static String phrase(Random random, int n) {
+		StringBuilder s = new StringBuilder();
+		for (int i = 0; i < n; i++) {
+			if (i > 0) s.append(' ');
+			s.append(words[random.nextInt(words.length)]);
+		}
+		return s.toString();
+	}
+}
@@ -0,0 +1,92 @@
+package com.michalkazior.simplemusicplayer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading the library, see CursorReader.
+ * 
+ * The queries are answered by FakeCursors, so what's measured is the work
+ * Library's worker does per row rather than SQLite. update() is a refresh
+ * after 1% of the songs have been added, 1% renamed and 1% deleted.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class LibraryBenchmark {
+	@Param({ "1000", "20000", "200000" })
+	int size;
+
+	private SongStore store;
+	private HashMap<Integer, Integer> rows;
+	private FakeCursor all;
+	private FakeCursor changed;
+	private FakeCursor remaining;
+
+	@Setup
+	public void setUp() {
+		store = Libraries.store(size);
+		all = FakeCursor.of(store);
+
+		rows = new HashMap<Integer, Integer>();
+		for (int i = 0; i < size; i++) {
+			rows.put(store.getId(i), i);
+		}
+
+		/* Added rows come first, then the renamed ones */
+		int n = Math.max(1, size / 100);
+		int[] ids = new int[2 * n];
+		String[] paths = new String[2 * n];
+		String[] titles = new String[2 * n];
+		long[] dates = new long[2 * n];
+		for (int i = 0; i < n; i++) {
+			ids[i] = size + i;
+			paths[i] = "/sdcard/Music/New/" + i + ".mp3";
+			dates[i] = size + i;
+
+			int row = i * (size / n);
+			ids[n + i] = store.getId(row);
+			paths[n + i] = store.getPath(row) + ".renamed";
+			dates[n + i] = size;
+		}
+		changed = new FakeCursor(ids, paths, titles, dates, dates);
+
+		int[] left = new int[n + size];
+		int k = 0;
+		for (int i = 0; i < n; i++) {
+			left[k++] = size + i;
+		}
+		for (int i = 0; i < size; i++) {
+			if (i % 100 != 50) left[k++] = store.getId(i);
+		}
+		remaining = new FakeCursor(Arrays.copyOf(left, k), null, null, null, null);
+	}
+
+	@Benchmark
+	public SongStore loadAll() {
+		return new CursorReader().readAll(all.rewind(), null);
+	}
+
+	@Benchmark
+	public SongStore update() {
+		CursorReader.Changes changes = new CursorReader().readChanges(changed.rewind(), store, rows);
+		boolean[] removed = CursorReader.readRemoved(remaining.rewind(), store);
+		return CursorReader.apply(store, changes, removed);
+	}
+}
@@ -0,0 +1,125 @@
+package com.michalkazior.simplemusicplayer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Queue operations as done by Player's commands.
+ * 
+ * Player is a Service and can't run here, so its steps are replayed on the
+ * SongTree it keeps the queue in. Each benchmark leaves the queue at the
+ * same size, operations which grow or shrink it are paired with their
+ * inverse.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class QueueBenchmark {
+	@Param({ "100", "1000", "10000" })
+	int size;
+
+	private SongTree queue;
+	private Song[] songs;
+	private Song[] batch;
+	private Song extra;
+	private Song playing;
+	private int next = 0;
+
+	@Setup
+	public void setUp() {
+		songs = Libraries.songs(size);
+		batch = Libraries.songs(100);
+		extra = new Song("/sdcard/Music/extra.mp3", null);
+		queue = new SongTree();
+		queue.addAll(0, songs);
+		playing = queue.get(0);
+	}
+
+	private Song pick() {
+		next = (next + 7919) % size;
+		return songs[next];
+	}
+
+	/**
+	 * enqueueSong() at the end, then removeSong().
+	 */
+	@Benchmark
+	public void enqueue() {
+		queue.add(queue.size(), extra);
+		queue.remove(extra);
+	}
+
+	/**
+	 * enqueueSongNext(), then removeSong().
+	 */
+	@Benchmark
+	public void enqueueNext() {
+		queue.add(queue.indexOf(playing) + 1, extra);
+		queue.remove(extra);
+	}
+
+	/**
+	 * enqueueSongs() of 100 songs, then removing them one by one.
+	 */
+	@Benchmark
+	public void enqueueBatch() {
+		queue.addAll(queue.size() / 2, batch);
+		for (Song song : batch) {
+			queue.remove(song);
+		}
+	}
+
+	@Benchmark
+	public void moveSong() {
+		Song song = pick();
+		int from = queue.indexOf(song);
+		int index = from == 0 ? 1 : from - 1;
+		queue.remove(song);
+		queue.add(index, song);
+	}
+
+	/**
+	 * removeSong() of a song which isn't playing, then putting it back.
+	 */
+	@Benchmark
+	public void removeSong() {
+		Song song = pick();
+		int index = queue.indexOf(song);
+		queue.remove(song);
+		queue.add(index, song);
+	}
+
+	/**
+	 * playNext(), with the finished song enqueued again at the end.
+	 */
+	@Benchmark
+	public Song playNext() {
+		int index = queue.indexOf(playing);
+		queue.remove(playing);
+		queue.add(queue.size(), playing);
+		playing = queue.get(index);
+		return playing;
+	}
+
+	/**
+	 * A new QueueSnapshot's array, built after every change.
+	 */
+	@Benchmark
+	public Song[] snapshot() {
+		return queue.toArray();
+	}
+}
@@ -0,0 +1,75 @@
+package com.michalkazior.simplemusicplayer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding the library and the queue.
+ * 
+ * The library is saved with writeStore() and restored with readStore(). The
+ * queue encoding is what's sent to other processes instead of parceled
+ * songs, see ParcelBenchmark in device/ for the comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SnapshotBenchmark {
+	@Param({ "1000", "20000", "200000" })
+	int size;
+
+	private SongStore store;
+	private byte[] storeBytes;
+	private QueueSnapshot queue;
+	private byte[] queueBytes;
+
+	@Setup
+	public void setUp() throws IOException {
+		store = Libraries.store(size);
+		storeBytes = writeStore().toByteArray();
+
+		queue = new QueueSnapshot(Libraries.songs(size), 0, 1);
+		queueBytes = writeQueue().toByteArray();
+	}
+
+	@Benchmark
+	public ByteArrayOutputStream writeStore() throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 * size);
+		store.write(new DataOutputStream(buffer));
+		return buffer;
+	}
+
+	@Benchmark
+	public SongStore readStore() throws IOException {
+		return SongStore.read(ByteBuffer.wrap(storeBytes));
+	}
+
+	@Benchmark
+	public ByteArrayOutputStream writeQueue() throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 * size);
+		SnapshotCodec.writeQueue(new DataOutputStream(buffer), queue);
+		return buffer;
+	}
+
+	@Benchmark
+	public QueueSnapshot readQueue() throws IOException {
+		return SnapshotCodec.readQueue(ByteBuffer.wrap(queueBytes));
+	}
+}
@@ -0,0 +1,186 @@
+package com.michalkazior.simplemusicplayer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import android.database.Cursor;
+
+/**
+ * Reads the rows of Library's media database queries.
+ * 
+ * Library owns the content resolver and runs the queries; all the per-row
+ * work is done here, against a plain Cursor. That keeps it runnable (and
+ * benchmarked) without a device, see benchmark/.
+ * 
+ * Columns are expected in the order of Library's projection: _ID, DATA,
+ * DISPLAY_NAME, DATE_ADDED, DATE_MODIFIED. The DATE_ADDED and DATE_MODIFIED
+ * watermarks are advanced as rows are read.
+ * 
+ * The class is not synchronized.
+ */
+class CursorReader {
+	/**
+	 * Number of rows delivered with the first partial result. Each following
+	 * chunk is twice as big, so the copying stays linear overall.
+	 */
+	static final int firstChunk = 64;
+
+	/**
+	 * Receives partial results of readAll().
+	 */
+	interface Chunks {
+		boolean isCancelled();
+
+		/**
+		 * @param store
+		 *            rows read so far
+		 */
+		void onChunk(SongStore store);
+	}
+
+	/**
+	 * Rows added or modified since the watermarks, see readChanges().
+	 */
+	static class Changes {
+		final ArrayList<Integer> addedIds = new ArrayList<Integer>();
+		final ArrayList<String> addedPaths = new ArrayList<String>();
+		final ArrayList<String> addedTitles = new ArrayList<String>();
+
+		/*
+		 * New path and title of modified rows, by row.
+		 */
+		final HashMap<Integer, String[]> modified = new HashMap<Integer, String[]>();
+
+		boolean isEmpty() {
+			return addedIds.isEmpty() && modified.isEmpty();
+		}
+	}
+
+	private long lastAdded = 0;
+	private long lastModified = 0;
+
+	long getLastAdded() {
+		return lastAdded;
+	}
+
+	long getLastModified() {
+		return lastModified;
+	}
+
+	void setWatermarks(long added, long modified) {
+		lastAdded = added;
+		lastModified = modified;
+	}
+
+	/**
+	 * Read a full query.
+	 * 
+	 * @param chunks
+	 *            called every firstChunk, 2 * firstChunk, ... rows, or null
+	 * @return the rows, or null if cancelled meanwhile
+	 */
+	SongStore readAll(Cursor c, Chunks chunks) {
+		SongStore.Builder builder = new SongStore.Builder();
+		int chunk = firstChunk;
+		while (c.moveToNext()) {
+			if (chunks != null && chunks.isCancelled()) return null;
+
+			builder.add(c.getInt(0), c.getString(1), c.getString(2));
+			track(c);
+
+			if (builder.size() == chunk) {
+				if (chunks != null) chunks.onChunk(builder.build());
+				chunk *= 2;
+			}
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Read a query for rows added or modified since the watermarks.
+	 * 
+	 * Watermarks have a 1s resolution so rows from the very same second are
+	 * fetched again. These are recognized and skipped.
+	 * 
+	 * @param rows
+	 *            store row by media id
+	 */
+	Changes readChanges(Cursor c, SongStore store, HashMap<Integer, Integer> rows) {
+		Changes changes = new Changes();
+		while (c.moveToNext()) {
+			int id = c.getInt(0);
+			String path = c.getString(1);
+			String title = c.getString(2);
+			Integer row = rows.get(id);
+			track(c);
+
+			if (row != null) {
+				if (store.getPath(row).equals(path)
+						&& (title == null || title.equals(store.getTitle(row)))) continue;
+				changes.modified.put(row, new String[] { path, title });
+			}
+			else {
+				changes.addedIds.add(id);
+				changes.addedPaths.add(path);
+				changes.addedTitles.add(title);
+			}
+		}
+		return changes;
+	}
+
+	/**
+	 * Find rows which are gone, given a query of all _IDs.
+	 * 
+	 * @return rows to be removed or null if there are none
+	 */
+	static boolean[] readRemoved(Cursor c, SongStore store) {
+		HashSet<Integer> existing = new HashSet<Integer>();
+		while (c.moveToNext()) {
+			existing.add(c.getInt(0));
+		}
+
+		boolean[] removed = null;
+		for (int i = 0; i < store.size(); i++) {
+			if (!existing.contains(store.getId(i))) {
+				if (removed == null) removed = new boolean[store.size()];
+				removed[i] = true;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Build a store with changes applied.
+	 * 
+	 * Rows are replaced in place when modified and prepended when new, which
+	 * keeps the DATE_ADDED DESC order intact.
+	 * 
+	 * @param removed
+	 *            see readRemoved()
+	 */
+	static SongStore apply(SongStore store, Changes changes, boolean[] removed) {
+		SongStore.Builder builder = new SongStore.Builder(store);
+		for (int i = 0; i < changes.addedIds.size(); i++) {
+			builder.add(changes.addedIds.get(i), changes.addedPaths.get(i), changes.addedTitles
+					.get(i));
+		}
+		for (int i = 0; i < store.size(); i++) {
+			if (removed != null && removed[i]) continue;
+
+			String[] row = changes.modified.get(i);
+			if (row != null) {
+				builder.add(store.getId(i), row[0], row[1]);
+			}
+			else {
+				builder.copy(store, i);
+			}
+		}
+		return builder.build();
+	}
+
+	private void track(Cursor c) {
+		lastAdded = Math.max(lastAdded, c.getLong(3));
+		lastModified = Math.max(lastModified, c.getLong(4));
+	}
+}
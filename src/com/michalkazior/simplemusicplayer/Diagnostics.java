@@ -0,0 +1,83 @@
+package com.michalkazior.simplemusicplayer;
+
+import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.widget.TextView;
+
+/**
+ * Activity showing the Player's counters and latencies.
+ * 
+ * It's the same text as "dumpsys" prints, refreshed every second while
+ * visible. Nothing is collected on behalf of this activity.
+ */
+public class Diagnostics extends Activity {
+	private TextView diagnosticsTextView;
+	private Handler handler = new Handler();
+	private Player player = null;
+
+	/**
+	 * Refresh interval, in msecs.
+	 */
+	private static final int refreshInterval = 1000;
+
+	private Runnable refreshRunnable = new Runnable() {
+		@Override
+		public void run() {
+			refresh();
+		}
+	};
+
+	private ServiceConnection playerConnection = new ServiceConnection() {
+		@Override
+		public void onServiceDisconnected(ComponentName name) {
+			player = null;
+		}
+
+		@Override
+		public void onServiceConnected(ComponentName name, IBinder service) {
+			player = ((Player.Proxy) service).getPlayer();
+			refresh();
+		}
+	};
+
+	@Override
+	protected void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+
+		setContentView(R.layout.diagnostics);
+		diagnosticsTextView = (TextView) findViewById(R.id.diagnosticsTextView);
+
+		bindService(new Intent(this, Player.class), playerConnection, 0);
+	}
+
+	@Override
+	protected void onResume() {
+		super.onResume();
+		refresh();
+	}
+
+	@Override
+	protected void onPause() {
+		handler.removeCallbacks(refreshRunnable);
+		super.onPause();
+	}
+
+	@Override
+	protected void onDestroy() {
+		unbindService(playerConnection);
+		super.onDestroy();
+	}
+
+	private void refresh() {
+		handler.removeCallbacks(refreshRunnable);
+		if (player == null) return;
+
+		diagnosticsTextView.setText(player.getDiagnostics());
+		handler.postDelayed(refreshRunnable, refreshInterval);
+	}
+}
@@ -0,0 +1,335 @@
+package com.michalkazior.simplemusicplayer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Finds audio files on the file system, for music the media scanner hasn't
+ * indexed (yet).
+ * 
+ * Directories are listed in parallel by a small pool of threads, one task per
+ * directory. Fork-join isn't available on this platform, so the tasks simply
+ * count themselves and the caller waits for the count to drop to zero.
+ * 
+ * Each directory's listing is cached along with its mtime. A directory whose
+ * mtime hasn't changed has the same entries, so it isn't listed again; only
+ * its subdirectories are checked. Rescanning an unchanged tree thus costs a
+ * stat per directory instead of one per file. The cache is saved to a file,
+ * so this holds across restarts as well.
+ * 
+ * Directories are keyed by their canonical path, so one reached through a
+ * symlink as well (e.g. Music/all -> Music) is listed and reported once.
+ * Files are reported under canonical paths too, which is what the media
+ * database stores: a root of /sdcard/Music yields /mnt/sdcard/Music/... on
+ * devices where /sdcard is a symlink, and Library can tell which files it
+ * already knows. That costs resolving the path of each directory, but
+ * nothing per file.
+ * 
+ * Like the media scanner, hidden directories and directories holding a
+ * .nomedia file are skipped along with everything below them.
+ * 
+ * scan() must not be called by more than one thread at a time.
+ */
+class FileScanner {
+	private static final String TAG = "FileScanner";
+	private static final int MAGIC = 0x534d5046; /* SMPF */
+
+	private static final String[] extensions = { ".mp3", ".ogg", ".m4a", ".aac", ".wav",
+			".amr", ".mid", ".midi", ".flac", };
+
+	/**
+	 * Directories deeper than this below a root are ignored.
+	 */
+	private static final int maxDepth = 16;
+
+	private static final int threads = 4;
+
+	/**
+	 * A cached directory listing.
+	 */
+	private static class Dir {
+		final long mtime;
+		final String[] files;
+		final String[] dirs;
+
+		Dir(long mtime, String[] files, String[] dirs) {
+			this.mtime = mtime;
+			this.files = files;
+			this.dirs = dirs;
+		}
+	}
+
+	private final File cacheFile;
+	private Map<String, Dir> cache = null;
+	private String[] lastRoots = null;
+
+	FileScanner(File cacheFile) {
+		this.cacheFile = cacheFile;
+	}
+
+	/**
+	 * Find audio files below given directories.
+	 * 
+	 * @return sorted paths, or null if nothing has changed since the last
+	 *         scan of the same roots
+	 * @throws InterruptedException
+	 *             if the calling thread has been interrupted, the scan is
+	 *             abandoned then
+	 */
+	String[] scan(String[] roots) throws InterruptedException {
+		if (cache == null) cache = readCache();
+
+		Scan scan = new Scan(cache);
+		if (!Arrays.equals(roots, lastRoots)) scan.isChanged.set(true);
+		scan.run(roots);
+
+		if (scan.visited.size() != cache.size()) scan.isChanged.set(true);
+
+		cache = scan.visited;
+		lastRoots = roots;
+		if (!scan.isChanged.get()) return null;
+
+		writeCache();
+		String[] paths = scan.found.toArray(new String[scan.found.size()]);
+		Arrays.sort(paths);
+		return paths;
+	}
+
+	/**
+	 * State of a single scan, shared by its tasks.
+	 * 
+	 * Tasks of an abandoned scan may still be running, so none of this is
+	 * reused.
+	 */
+	private static class Scan {
+		final Map<String, Dir> cache;
+		final Map<String, Dir> visited = new ConcurrentHashMap<String, Dir>();
+		final ConcurrentLinkedQueue<String> found = new ConcurrentLinkedQueue<String>();
+		final AtomicInteger pending = new AtomicInteger();
+		final AtomicBoolean isChanged = new AtomicBoolean();
+		ExecutorService pool;
+
+		Scan(Map<String, Dir> cache) {
+			this.cache = cache;
+		}
+
+		void run(String[] roots) throws InterruptedException {
+			pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable r) {
+					return new Thread(new Runnable() {
+						@Override
+						public void run() {
+							Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+							r.run();
+						}
+					}, TAG);
+				}
+			});
+
+			try {
+				synchronized (pending) {
+					for (String root : roots) {
+						submit(root, 0);
+					}
+					while (pending.get() > 0) {
+						pending.wait();
+					}
+				}
+			}
+			finally {
+				pool.shutdownNow();
+			}
+		}
+
+		private void submit(final String path, final int depth) {
+			pending.incrementAndGet();
+			try {
+				pool.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							visit(path, depth);
+						}
+						finally {
+							done();
+						}
+					}
+				});
+			}
+			catch (RejectedExecutionException e) {
+				/* The scan has been abandoned */
+				done();
+			}
+		}
+
+		private void done() {
+			if (pending.decrementAndGet() == 0) {
+				synchronized (pending) {
+					pending.notifyAll();
+				}
+			}
+		}
+
+		private void visit(String path, int depth) {
+			if (depth > maxDepth) return;
+
+			File file = new File(path);
+			String key;
+			try {
+				key = file.getCanonicalPath();
+			}
+			catch (IOException e) {
+				return;
+			}
+			if (visited.containsKey(key)) return;
+
+			long mtime = file.lastModified();
+			if (mtime == 0) return;
+
+			Dir dir = cache.get(key);
+			if (dir == null || dir.mtime != mtime) {
+				dir = list(path, mtime);
+				isChanged.set(true);
+			}
+			if (visited.put(key, dir) != null) return;
+
+			String prefix = key.equals("/") ? key : key + "/";
+			for (String name : dir.files) {
+				found.add(prefix + name);
+			}
+			for (String name : dir.dirs) {
+				submit(prefix + name, depth + 1);
+			}
+		}
+	}
+
+	/**
+	 * List a directory.
+	 * 
+	 * Names with an audio extension are taken for files without checking,
+	 * so only the other entries cost a stat.
+	 */
+	private static Dir list(String path, long mtime) {
+		String[] names = new File(path).list();
+		if (names == null) names = new String[0];
+
+		ArrayList<String> files = new ArrayList<String>();
+		ArrayList<String> dirs = new ArrayList<String>();
+		for (String name : names) {
+			if (name.equals(".nomedia")) {
+				return new Dir(mtime, new String[0], new String[0]);
+			}
+			if (name.startsWith(".")) continue;
+
+			if (isAudio(name)) {
+				files.add(name);
+			}
+			else if (new File(path, name).isDirectory()) {
+				dirs.add(name);
+			}
+		}
+		return new Dir(mtime, files.toArray(new String[files.size()]), dirs
+				.toArray(new String[dirs.size()]));
+	}
+
+	private static boolean isAudio(String name) {
+		for (String extension : extensions) {
+			if (name.regionMatches(true, name.length() - extension.length(), extension, 0,
+					extension.length())) return true;
+		}
+		return false;
+	}
+
+	private Map<String, Dir> readCache() {
+		Map<String, Dir> cache = new ConcurrentHashMap<String, Dir>();
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+					cacheFile), 65536));
+			try {
+				if (in.readInt() != MAGIC) return cache;
+				int n = in.readInt();
+				for (int i = 0; i < n; i++) {
+					String path = in.readUTF();
+					long mtime = in.readLong();
+					cache.put(path, new Dir(mtime, readNames(in), readNames(in)));
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (FileNotFoundException e) {
+			/* Nothing has been scanned yet */
+		}
+		catch (IOException e) {
+			Log.w(TAG, "Can't read the scan cache", e);
+			cache.clear();
+		}
+		return cache;
+	}
+
+	private static String[] readNames(DataInputStream in) throws IOException {
+		String[] names = new String[in.readInt()];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = in.readUTF();
+		}
+		return names;
+	}
+
+	private void writeCache() {
+		File tmp = new File(cacheFile.getPath() + ".tmp");
+		try {
+			FileOutputStream file = new FileOutputStream(tmp);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 65536));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(cache.size());
+				for (Map.Entry<String, Dir> e : cache.entrySet()) {
+					out.writeUTF(e.getKey());
+					out.writeLong(e.getValue().mtime);
+					writeNames(out, e.getValue().files);
+					writeNames(out, e.getValue().dirs);
+				}
+				out.flush();
+				file.getFD().sync();
+			}
+			finally {
+				out.close();
+			}
+			if (!tmp.renameTo(cacheFile)) throw new IOException("Can't rename " + tmp);
+		}
+		catch (IOException e) {
+			Log.w(TAG, "Can't write the scan cache", e);
+			tmp.delete();
+		}
+	}
+
+	private static void writeNames(DataOutputStream out, String[] names) throws IOException {
+		out.writeInt(names.length);
+		for (String name : names) {
+			out.writeUTF(name);
+		}
+	}
+}
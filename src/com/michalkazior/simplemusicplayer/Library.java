@@ -0,0 +1,586 @@
+package com.michalkazior.simplemusicplayer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.provider.MediaStore;
+import android.util.Log;
+
+/**
+ * Resident media library cache.
+ * 
+ * The library is queried in full only once. Afterwards a content observer
+ * marks it dirty and the next request fetches only rows added or modified
+ * since the last seen DATE_ADDED/DATE_MODIFIED watermarks. Removed rows are
+ * detected by comparing the row count and pruned with an id-only query.
+ * 
+ * As long as nothing has changed the very same store is handed out, so
+ * callers may compare by reference to skip any work.
+ * 
+ * The store and the watermarks are also saved to a file whenever they change.
+ * A new instance starts from that file instead of a full query: the saved
+ * store is delivered right away and then patched by the same incremental
+ * update, so the first results don't depend on the library size.
+ * 
+ * Optionally, music roots are also scanned for files the media database
+ * doesn't know of (yet), see FileScanner. These are merged in at the top,
+ * files known to the media database aren't listed twice. The scan is done
+ * whenever songs are requested, but not more often than once per
+ * scanInterval.
+ * 
+ * All cursor work is done by a single worker thread, which also builds the
+ * search index. Results are delivered on the thread that created the Library
+ * (i.e. the main thread).
+ */
+public class Library {
+	private static final String TAG = "Library";
+	private static final int MAGIC = 0x534d5057; /* SMPW */
+
+	private static final Uri uri = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+	private static final String[] columns = { MediaStore.Audio.Media._ID,
+			MediaStore.Audio.Media.DATA, MediaStore.Audio.Media.DISPLAY_NAME,
+			MediaStore.Audio.Media.DATE_ADDED, MediaStore.Audio.Media.DATE_MODIFIED, };
+	private static final String order = MediaStore.Audio.Media.DATE_ADDED + " DESC";
+
+	/**
+	 * Minimum time between file system scans, in msecs.
+	 */
+	private static final int scanInterval = 60000;
+
+	/**
+	 * Receives (partial) results of load().
+	 */
+	public interface Listener {
+		/**
+		 * @param store
+		 *            songs loaded so far
+		 * @param index
+		 *            search index over the store, null for partial results
+		 *            and for the saved store delivered first
+		 * @param isDone
+		 *            false if more songs are about to follow
+		 */
+		void onSongsLoaded(SongStore store, SongIndex index, boolean isDone);
+	}
+
+	/**
+	 * A pending load() request.
+	 */
+	public class Task implements Runnable {
+		private Listener listener;
+		private volatile boolean isCancelled = false;
+
+		private Task(Listener listener) {
+			this.listener = listener;
+		}
+
+		/**
+		 * Stop loading and drop any undelivered results.
+		 * 
+		 * Must be called from the thread results are delivered on.
+		 */
+		public void cancel() {
+			isCancelled = true;
+		}
+
+		public boolean isCancelled() {
+			return isCancelled;
+		}
+
+		@Override
+		public void run() {
+			refresh(this);
+		}
+
+		private void deliver(final SongStore store, final SongIndex index, final boolean isDone) {
+			if (listener == null) return;
+
+			handler.post(new Runnable() {
+				@Override
+				public void run() {
+					if (!isCancelled) listener.onSongsLoaded(store, index, isDone);
+				}
+			});
+		}
+	}
+
+	private ContentResolver resolver;
+	private SharedPreferences preferences;
+	private File snapshotFile;
+	private File scanCacheFile;
+	private ContentObserver observer;
+	private boolean isObserving = false;
+	private boolean isClosed = false;
+	private Handler handler = new Handler();
+
+	/*
+	 * The worker runs at background priority, so loading doesn't compete with
+	 * the UI thread, e.g. while the app is starting.
+	 */
+	private ExecutorService worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(final Runnable r) {
+			return new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					r.run();
+				}
+			}, TAG);
+		}
+	});
+
+	/*
+	 * These are touched by the worker thread only.
+	 */
+	private boolean isLoaded = false;
+	private CursorReader reader = new CursorReader();
+	private SongStore store = SongStore.EMPTY;
+	private HashMap<Integer, Integer> rows = null;
+	private FileScanner scanner;
+	private String[] scannedPaths = {};
+	private String lastScanRoots = null;
+	private long lastScan = 0;
+
+	/*
+	 * What's delivered, i.e. the media database rows merged with scanned
+	 * files, and its index.
+	 */
+	private SongStore merged = store;
+	private SongIndex index = new SongIndex(merged);
+
+	private volatile boolean isDirty = true;
+
+	/**
+	 * Create a library.
+	 * 
+	 * This is cheap, nothing is touched until the first load(). Must be
+	 * called on the thread results are to be delivered on.
+	 */
+	public Library(Context context) {
+		resolver = context.getContentResolver();
+		preferences = PreferenceManager.getDefaultSharedPreferences(context);
+		snapshotFile = new File(context.getFilesDir(), "library.snapshot");
+		scanCacheFile = new File(context.getFilesDir(), "scan.cache");
+		scanner = new FileScanner(scanCacheFile);
+
+		/*
+		 * A null handler makes onChange() run on a binder thread. That's fine
+		 * since all it does is flagging the cache.
+		 */
+		observer = new ContentObserver(null) {
+			@Override
+			public void onChange(boolean selfChange) {
+				invalidate();
+			}
+		};
+	}
+
+	/**
+	 * Stop tracking media database changes and abandon pending loads.
+	 */
+	public void close() {
+		worker.shutdownNow();
+		synchronized (observer) {
+			isClosed = true;
+			if (isObserving) resolver.unregisterContentObserver(observer);
+			isObserving = false;
+		}
+	}
+
+	/**
+	 * Start tracking media database changes.
+	 * 
+	 * Done by the worker before the first query rather than by the
+	 * constructor, which keeps the binder call off the caller's thread.
+	 */
+	private void observe() {
+		synchronized (observer) {
+			if (isObserving || isClosed) return;
+			resolver.registerContentObserver(uri, true, observer);
+			isObserving = true;
+		}
+	}
+
+	/**
+	 * Mark the cache as possibly stale.
+	 */
+	public void invalidate() {
+		isDirty = true;
+	}
+
+	/**
+	 * Drop everything and start over with a full query next time.
+	 */
+	public void clear() {
+		isDirty = true;
+		worker.execute(new Runnable() {
+			@Override
+			public void run() {
+				isLoaded = false;
+				reader.setWatermarks(0, 0);
+				forgetScan();
+				publish(SongStore.EMPTY);
+			}
+		});
+	}
+
+	/**
+	 * Get all songs, refreshing the cache first if necessary.
+	 * 
+	 * Songs are ordered by DATE_ADDED, newest first. The listener is called
+	 * with partial results while the initial full query is in progress.
+	 * 
+	 * @param listener
+	 * @return a handle which may be used to cancel the request
+	 */
+	public Task load(Listener listener) {
+		Task task = new Task(listener);
+		worker.execute(task);
+		return task;
+	}
+
+	/**
+	 * Bring the cache up to date in the background, so that a later load()
+	 * is served right away.
+	 */
+	public void prefetch() {
+		load((Listener) null);
+	}
+
+	private void refresh(Task task) {
+		if (task.isCancelled()) return;
+
+		observe();
+
+		if (isDirty) {
+			/*
+			 * Clear the flag before querying so that a change notified
+			 * meanwhile isn't lost.
+			 */
+			isDirty = false;
+
+			if (!Player.isExternalStorageMounted()) {
+				isDirty = true;
+			}
+			else if (!isLoaded) {
+				if (restore(task)) {
+					update();
+				}
+				else if (!load(task)) {
+					isDirty = true;
+				}
+			}
+			else {
+				update();
+			}
+		}
+
+		if (Player.isExternalStorageMounted()) scan(task);
+		task.deliver(merged, index, true);
+	}
+
+	/**
+	 * Scan the file system if enabled and due.
+	 */
+	private void scan(Task task) {
+		String roots = preferences.getString("scan_roots", "");
+		if (!preferences.getBoolean("scan_enabled", false)) {
+			if (scannedPaths.length > 0) {
+				forgetScan();
+				merge();
+			}
+			return;
+		}
+		if (roots.equals(lastScanRoots) && SystemClock.elapsedRealtime() - lastScan < scanInterval)
+			return;
+
+		/* The media database rows needn't wait for the scan */
+		task.deliver(merged, index, false);
+
+		long start = SystemClock.elapsedRealtime();
+		String[] paths;
+		try {
+			paths = scanner.scan(parseRoots(roots));
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		Stats.scan.add(SystemClock.elapsedRealtime() - start);
+
+		lastScan = SystemClock.elapsedRealtime();
+		lastScanRoots = roots;
+		if (paths != null) {
+			scannedPaths = paths;
+			merge();
+		}
+	}
+
+	/**
+	 * Split roots separated by colons, which can't appear in FAT names.
+	 * 
+	 * @return the roots, or the external storage directory if there are none
+	 */
+	private static String[] parseRoots(String roots) {
+		ArrayList<String> list = new ArrayList<String>();
+		for (String root : roots.split(":")) {
+			root = root.trim();
+			while (root.length() > 1 && root.endsWith("/")) {
+				root = root.substring(0, root.length() - 1);
+			}
+			if (root.length() > 0) list.add(root);
+		}
+		if (list.size() == 0) list.add(Environment.getExternalStorageDirectory().getPath());
+		return list.toArray(new String[list.size()]);
+	}
+
+	/**
+	 * Drop scan results. A new scanner makes sure the next scan reports its
+	 * results even if nothing has changed on the disk meanwhile.
+	 */
+	private void forgetScan() {
+		scannedPaths = new String[0];
+		lastScanRoots = null;
+		scanner = new FileScanner(scanCacheFile);
+	}
+
+	/**
+	 * Walk the whole media database.
+	 * 
+	 * @return false if cancelled meanwhile
+	 */
+	private boolean load(final Task task) {
+		long start = SystemClock.elapsedRealtime();
+		SongStore loaded;
+		Cursor c = resolver.query(uri, columns, null, null, order);
+		if (c == null) return false;
+
+		try {
+			loaded = reader.readAll(c, new CursorReader.Chunks() {
+				@Override
+				public boolean isCancelled() {
+					return task.isCancelled();
+				}
+
+				@Override
+				public void onChunk(SongStore store) {
+					/* A prefetch has no use for partial results */
+					if (task.listener != null) task.deliver(store, null, false);
+				}
+			});
+		}
+		finally {
+			c.close();
+		}
+		if (loaded == null) return false;
+		Stats.fullQuery.add(SystemClock.elapsedRealtime() - start);
+
+		publish(loaded);
+		save();
+		isLoaded = true;
+		return true;
+	}
+
+	/**
+	 * Start from the saved store.
+	 * 
+	 * The store is delivered before the search index is built, so the first
+	 * paint waits for the file read only.
+	 * 
+	 * @return false if there's no usable saved store
+	 */
+	private boolean restore(Task task) {
+		long start = SystemClock.elapsedRealtime();
+		SongStore restored;
+		long added, modified;
+		try {
+			ByteBuffer b = SnapshotCodec.map(new FileInputStream(snapshotFile));
+			if (b.remaining() < 20 || b.getInt() != MAGIC) return false;
+			added = b.getLong();
+			modified = b.getLong();
+			restored = SongStore.read(b);
+		}
+		catch (FileNotFoundException e) {
+			return false;
+		}
+		catch (IOException e) {
+			Log.w(TAG, "Can't read the library snapshot", e);
+			return false;
+		}
+
+		Stats.restore.add(SystemClock.elapsedRealtime() - start);
+		task.deliver(restored, null, false);
+		reader.setWatermarks(added, modified);
+		publish(restored);
+		isLoaded = true;
+		return true;
+	}
+
+	/**
+	 * Open the saved store for a client in another process.
+	 * 
+	 * The client maps it and decodes it with read(). A save renames a new
+	 * file into place, so an open descriptor keeps seeing consistent data.
+	 */
+	public ParcelFileDescriptor share() throws FileNotFoundException {
+		return ParcelFileDescriptor.open(snapshotFile, ParcelFileDescriptor.MODE_READ_ONLY);
+	}
+
+	/**
+	 * Decode a store shared by share().
+	 */
+	public static SongStore read(ByteBuffer b) throws IOException {
+		if (b.remaining() < 20 || b.getInt() != MAGIC) throw new IOException("Unknown library format");
+		b.position(b.position() + 16);
+		return SongStore.read(b);
+	}
+
+	/**
+	 * Save the store and the watermarks.
+	 * 
+	 * The file is written aside, synced and renamed, so it's never seen half
+	 * written, not even after a power loss.
+	 */
+	private void save() {
+		File tmp = new File(snapshotFile.getPath() + ".tmp");
+		try {
+			FileOutputStream file = new FileOutputStream(tmp);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 65536));
+			try {
+				out.writeInt(MAGIC);
+				out.writeLong(reader.getLastAdded());
+				out.writeLong(reader.getLastModified());
+				store.write(out);
+				out.flush();
+				file.getFD().sync();
+			}
+			finally {
+				out.close();
+			}
+			if (!tmp.renameTo(snapshotFile)) throw new IOException("Can't rename " + tmp);
+		}
+		catch (IOException e) {
+			Log.w(TAG, "Can't write the library snapshot", e);
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Apply changes made since the last load()/update().
+	 */
+	private void update() {
+		long start = SystemClock.elapsedRealtime();
+		if (rows == null) {
+			rows = new HashMap<Integer, Integer>();
+			for (int i = 0; i < store.size(); i++) {
+				rows.put(store.getId(i), i);
+			}
+		}
+
+		CursorReader.Changes changes;
+		Cursor c = resolver.query(uri, columns, MediaStore.Audio.Media.DATE_ADDED + " >= ? OR "
+				+ MediaStore.Audio.Media.DATE_MODIFIED + " >= ?", new String[] {
+				Long.toString(reader.getLastAdded()), Long.toString(reader.getLastModified()) },
+				order);
+		if (c == null) return;
+
+		try {
+			changes = reader.readChanges(c, store, rows);
+		}
+		finally {
+			c.close();
+		}
+
+		boolean[] removed = prune(store.size() + changes.addedIds.size());
+		Stats.updateQuery.add(SystemClock.elapsedRealtime() - start);
+		if (changes.isEmpty() && removed == null) return;
+
+		publish(CursorReader.apply(store, changes, removed));
+		save();
+	}
+
+	/**
+	 * Find rows which are gone from the media database.
+	 * 
+	 * @param expected
+	 *            number of rows the media database should have
+	 * @return rows to be removed or null if there are none
+	 */
+	private boolean[] prune(int expected) {
+		Cursor c = resolver.query(uri, new String[] { MediaStore.Audio.Media._ID }, null, null,
+				null);
+		if (c == null) return null;
+
+		try {
+			if (c.getCount() == expected) return null;
+			return CursorReader.readRemoved(c, store);
+		}
+		finally {
+			c.close();
+		}
+	}
+
+	private void publish(SongStore store) {
+		this.store = store;
+		rows = null;
+		merge();
+	}
+
+	/**
+	 * Put scanned files the media database doesn't know of in front of its
+	 * rows and index the result.
+	 * 
+	 * Scanned files get negative ids, which the media database never uses.
+	 */
+	private void merge() {
+		SongStore merged = store;
+		if (scannedPaths.length > 0) {
+			HashSet<String> known = new HashSet<String>();
+			for (int i = 0; i < store.size(); i++) {
+				known.add(store.getPath(i));
+			}
+
+			SongStore.Builder builder = new SongStore.Builder();
+			for (String path : scannedPaths) {
+				if (!known.contains(path)) builder.add(-1 - builder.size(), path, null);
+			}
+			if (builder.size() > 0) {
+				for (int i = 0; i < store.size(); i++) {
+					builder.copy(store, i);
+				}
+				merged = builder.build();
+			}
+		}
+		if (merged == this.merged) return;
+		this.merged = merged;
+
+		long start = SystemClock.elapsedRealtime();
+		index = new SongIndex(merged);
+		Stats.indexBuild.add(SystemClock.elapsedRealtime() - start);
+	}
+}
@@ -0,0 +1,101 @@
+package com.michalkazior.simplemusicplayer;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+
+/**
+ * Adapter for a subset of SongStore rows.
+ * 
+ * Song objects are created only when an item is actually requested. The last
+ * one is kept, as ListView asks for the same item several times over e.g.
+ * for a click and its context menu. Use getSongs() for songs to enqueue, so
+ * that each gets an id of its own.
+ */
+public class LibraryAdapter extends android.widget.BaseAdapter {
+	private SongStore store = SongStore.EMPTY;
+	private int[] rows = {};
+	private LayoutInflater li;
+	private int lastPosition = -1;
+	private Song lastSong = null;
+
+	public LibraryAdapter(Context context) {
+		super();
+		this.li = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+	}
+
+	public void setItems(SongStore store, int[] rows) {
+		this.store = store;
+		this.rows = rows;
+		lastPosition = -1;
+		lastSong = null;
+		notifyDataSetChanged();
+	}
+
+	/**
+	 * Append rows of the same store, e.g. the next page of a Ranking.
+	 */
+	public void addItems(int[] more) {
+		int[] a = new int[rows.length + more.length];
+		System.arraycopy(rows, 0, a, 0, rows.length);
+		System.arraycopy(more, 0, a, rows.length, more.length);
+		rows = a;
+		notifyDataSetChanged();
+	}
+
+	@Override
+	public View getView(int position, View convertView, ViewGroup parent) {
+		View v = convertView;
+		SongAdapter.ViewHolder holder;
+		if (v == null) {
+			v = li.inflate(R.layout.listitem, null);
+			holder = new SongAdapter.ViewHolder(v);
+			v.setTag(holder);
+		}
+		else {
+			holder = (SongAdapter.ViewHolder) v.getTag();
+		}
+		if (position >= 0 && position < rows.length) {
+			/*
+			 * The filename is bound straight from the store's buffer and the
+			 * directory comes from the shared dictionary, so binding a row
+			 * allocates nothing.
+			 */
+			int row = rows[position];
+			holder.tv1.setText(store.getChars(), store.getNameStart(row), store.getNameLength(row));
+			holder.tv2.setText(store.getDirectory(row));
+		}
+		return v;
+	}
+
+	@Override
+	public int getCount() {
+		return rows.length;
+	}
+
+	@Override
+	public Object getItem(int position) {
+		if (position != lastPosition) {
+			lastSong = store.getSong(rows[position]);
+			lastPosition = position;
+		}
+		return lastSong;
+	}
+
+	/**
+	 * Create new songs for all items.
+	 */
+	public Song[] getSongs() {
+		Song[] songs = new Song[rows.length];
+		for (int i = 0; i < songs.length; i++) {
+			songs[i] = store.getSong(rows[i]);
+		}
+		return songs;
+	}
+
+	@Override
+	public long getItemId(int position) {
+		return store.getId(rows[position]);
+	}
+}
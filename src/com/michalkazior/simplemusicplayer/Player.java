@@ -1,6 +1,18 @@
 package com.michalkazior.simplemusicplayer;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import android.app.Notification;
 import android.app.PendingIntent;
@@ -9,19 +21,26 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.database.Cursor;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.media.MediaPlayer.OnCompletionListener;
 import android.media.MediaPlayer.OnErrorListener;
-import android.net.Uri;
+import android.media.MediaPlayer.OnPreparedListener;
 import android.os.Binder;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
+import android.os.MessageQueue;
 import android.os.Messenger;
+import android.os.Parcelable;
 import android.os.RemoteException;
-import android.provider.MediaStore;
+import android.os.SystemClock;
 import android.telephony.TelephonyManager;
+import android.text.TextUtils;
+import android.util.Log;
 import android.widget.Toast;
 
 /**
@@ -29,11 +48,45 @@ import android.widget.Toast;
  * 
  * It manages the playlist, handles operations, sends events to UI client(s).
  * 
+ * All the work is done on a dedicated playback thread. Public methods which
+ * change anything only send a command there and return right away, commands
+ * are handled one by one in the order they were sent. Getters read immutable
+ * snapshots published after each command, so they never block either.
+ * 
  * @author kazik
  */
 public class Player extends Service {
+	private static final String TAG = "Player";
+
+	/**
+	 * Events sent to clients.
+	 * 
+	 * Queue events (all but StateChanged) carry a sequence number as "seq" in
+	 * the message data. A client applying deltas must see consecutive numbers;
+	 * on a gap it should fall back to a full snapshot, see getQueue().
+	 * 
+	 * EnqueuedSongsChanged: the queue has changed as a whole.
+	 * 
+	 * SongsInserted: arg1 is the index, arg2 the count and "songs" holds the
+	 * songs.
+	 * 
+	 * SongsRemoved: arg1 is the index, arg2 the count.
+	 * 
+	 * SongMoved: arg1 is the old index, arg2 the new one.
+	 * 
+	 * PlayingChanged: "song" holds the now playing song, or null.
+	 * 
+	 * StateChanged: arg1 is the position and arg2 the duration in msecs, as of
+	 * sending. It's also sent after a seek. Clients are expected to advance
+	 * the position on their own while IS_PLAYING.
+	 * 
+	 * Events raised by commands handled within the same frame are merged, see
+	 * coalesce(). A client gets at most one StateChanged and one
+	 * PlayingChanged per batch.
+	 */
 	enum Event {
-		EnqueuedSongsChanged, StateChanged,
+		EnqueuedSongsChanged, StateChanged, SongsInserted, SongsRemoved, SongMoved,
+		PlayingChanged,
 	};
 
 	/**
@@ -45,23 +98,283 @@ public class Player extends Service {
 		}
 	};
 
+	/**
+	 * Requests from clients in other processes.
+	 * 
+	 * These can't use the Proxy, which only works within the process.
+	 * Instead they bind with an Intent of ACTION_REMOTE, which yields a
+	 * Messenger, and send it Requests with msg.replyTo set.
+	 * 
+	 * The requests hand out the whole library and queue, and messages don't
+	 * tell who sent them. So the service requires PERMISSION_REMOTE, which
+	 * is only granted to apps signed with the same key as this one.
+	 * 
+	 * RegisterClient, UnregisterClient: start or stop sending Events to
+	 * replyTo, like registerHandler() and unregisterHandler() do.
+	 * 
+	 * ShareQueue, ShareLibrary: answered on replyTo by a message of the same
+	 * what. Its data is the bundle shareQueue() or shareLibrary() returns,
+	 * or empty if the snapshot can't be shared.
+	 */
+	public enum Request {
+		RegisterClient, UnregisterClient, ShareQueue, ShareLibrary,
+	};
+
+	/**
+	 * Action of an Intent binding to the Messenger taking Requests.
+	 */
+	public static final String ACTION_REMOTE = "com.michalkazior.simplemusicplayer.action.REMOTE";
+
+	/**
+	 * Permission required to bind or start the Player from another app.
+	 */
+	public static final String PERMISSION_REMOTE = "com.michalkazior.simplemusicplayer.permission.REMOTE";
+
 	/**
 	 * Possible Player states.
+	 * 
+	 * IS_PREPARING is entered by play() while the song is being prepared in
+	 * the background. It's followed by IS_PLAYING (or IS_PAUSED if stop() has
+	 * been called meanwhile, see isPausePending()), or by IS_STOPPED if the
+	 * preparation fails.
 	 */
 	public enum State {
-		IS_STOPPED, IS_PLAYING, IS_PAUSED,
+		IS_STOPPED, IS_PREPARING, IS_PLAYING, IS_PAUSED,
 	};
 
+	/**
+	 * Commands handled on the playback thread.
+	 * 
+	 * Each public method which changes anything sends one. Message arguments
+	 * are the method's arguments, see PlaybackHandler.
+	 */
+	private enum Command {
+		RegisterHandler, SetPlaying, EnqueueSong, EnqueueSongNext, EnqueueSongs,
+		ClearEnqueuedSongs, SetEnqueuedSongs, PermuteEnqueuedSongs, MoveSong, RemoveSong, Play,
+		PlayNext, Stop, Seek, Reset, PlayTry, HoldByCall, HoldByHeadset,
+	};
+
+	private class PlaybackHandler extends Handler {
+		PlaybackHandler(Looper looper) {
+			super(looper);
+		}
+
+		@Override
+		public void handleMessage(Message msg) {
+			Stats.commands.inc();
+			Stats.commandWait.add(SystemClock.uptimeMillis() - msg.getWhen());
+			long start = System.nanoTime();
+
+			switch (Command.values()[msg.what]) {
+				case RegisterHandler:
+					doRegisterHandler((Messenger) msg.obj);
+					break;
+				case SetPlaying:
+					doSetPlaying((Song) msg.obj);
+					break;
+				case EnqueueSong:
+					doEnqueueSong((Song) msg.obj, msg.arg1);
+					break;
+				case EnqueueSongNext:
+					doEnqueueSongNext((Song) msg.obj);
+					break;
+				case EnqueueSongs:
+					doEnqueueSongs((Song[]) msg.obj, msg.arg1);
+					break;
+				case ClearEnqueuedSongs:
+					doClearEnqueuedSongs();
+					break;
+				case SetEnqueuedSongs:
+					doSetEnqueuedSongs((Song[]) msg.obj);
+					break;
+				case PermuteEnqueuedSongs:
+					doPermuteEnqueuedSongs((int[]) msg.obj);
+					break;
+				case MoveSong:
+					doMoveSong((Song) msg.obj, msg.arg1);
+					break;
+				case RemoveSong:
+					doRemoveSong((Song) msg.obj);
+					break;
+				case Play:
+					doPlay();
+					break;
+				case PlayNext:
+					doPlayNext();
+					break;
+				case Stop:
+					doStop();
+					break;
+				case Seek:
+					doSeek(msg.arg1);
+					break;
+				case Reset:
+					doReset();
+					break;
+				case PlayTry:
+					doPlayTry();
+					break;
+				case HoldByCall:
+					isOnHoldByCall = msg.arg1 != 0;
+					if (isOnHoldByCall) doStop();
+					else doPlayTry();
+					break;
+				case HoldByHeadset:
+					isOnHoldByHeadset = msg.arg1 != 0;
+					if (isOnHoldByHeadset) doStop();
+					else doPlayTry();
+					break;
+			}
+			schedulePublish();
+			Stats.commandTime.add((System.nanoTime() - start) / 1000);
+		}
+	}
+
+	/**
+	 * Handles Requests on the playback thread.
+	 * 
+	 * Messages come from other processes, so unknown ones are ignored.
+	 */
+	private class RequestHandler extends Handler {
+		RequestHandler(Looper looper) {
+			super(looper);
+		}
+
+		@Override
+		public void handleMessage(Message msg) {
+			Messenger client = msg.replyTo;
+			if (client == null || msg.what < 0 || msg.what >= Request.values().length) return;
+
+			switch (Request.values()[msg.what]) {
+				case RegisterClient:
+					doRegisterHandler(client);
+					break;
+				case UnregisterClient:
+					clients.remove(client);
+					break;
+				case ShareQueue:
+				case ShareLibrary:
+					reply(client, Request.values()[msg.what]);
+					break;
+			}
+		}
+
+		private void reply(Messenger client, Request r) {
+			Bundle data;
+			try {
+				data = r == Request.ShareQueue ? shareQueue() : shareLibrary();
+			}
+			catch (IOException e) {
+				Log.w(TAG, "Can't share a snapshot", e);
+				data = new Bundle();
+			}
+
+			Message msg = Message.obtain(null, r.ordinal());
+			msg.setData(data);
+			try {
+				client.send(msg);
+			}
+			catch (RemoteException e) {
+				/* The client must've died */
+			}
+		}
+	}
+
+	/**
+	 * Playback state published for other threads.
+	 */
+	private static class Status {
+		final State state;
+		final boolean isPausePending;
+		final int position;
+		final int duration;
+		final long time;
+
+		Status(State state, boolean isPausePending, int position, int duration, long time) {
+			this.state = state;
+			this.isPausePending = isPausePending;
+			this.position = position;
+			this.duration = duration;
+			this.time = time;
+		}
+	}
+
+	private Library library = null;
+	private HandlerThread playbackThread = null;
+	private Handler playback = null;
+	private Messenger requests = null;
+
+	/*
+	 * What other threads see, see publish().
+	 */
+	private volatile QueueSnapshot queue = new QueueSnapshot(new Song[0], -1, 0);
+	private volatile Status status = new Status(State.IS_STOPPED, false, 0, 0, 0);
+
+	/*
+	 * Everything below is confined to the playback thread.
+	 */
 	private boolean isOnHoldByCall = false;
 	private boolean isOnHoldByHeadset = false;
-	private ArrayList<Song> enqueuedSongs = new ArrayList<Song>();
+	private SongTree enqueuedSongs = new SongTree();
 	private MediaPlayer mp = null;
+	private MediaPlayer nextMp = null;
+	private Song nextSong = null;
+	private boolean isNextPrepared = false;
+
+	/*
+	 * Commands received while IS_PREPARING. Repeated ones are coalesced, only
+	 * the last seek() matters. The duration is known beforehand only when
+	 * resuming from a checkpoint.
+	 */
+	private boolean isPausePending = false;
+	private int pendingSeek = -1;
+	private int pendingDuration = 0;
+
+	private ArrayList<MediaPlayer> idlePlayers = new ArrayList<MediaPlayer>();
+	private static final int maxIdlePlayers = 2;
+	private long switchStart = 0;
+	private long prepareStart = 0;
+	private long nextPrepareStart = 0;
+	private long completionTime = 0;
 	private State state = State.IS_STOPPED;
 	private Song playing = null;
-	private ArrayList<Messenger> clients = new ArrayList<Messenger>();
+	private CopyOnWriteArrayList<Messenger> clients = new CopyOnWriteArrayList<Messenger>();
+	private int queueSeq = 0;
+	private boolean isQueueDirty = false;
+	private boolean isStatusDirty = false;
+	private ArrayList<Message> pendingEvents = new ArrayList<Message>();
+	private boolean isPublishPending = false;
+	private long lastPublish = 0;
+
+	/*
+	 * Publishing is limited to once per frame, so that bursts of commands
+	 * (e.g. rapid skipping) reach clients as a single batch of signals.
+	 */
+	private static final int publishInterval = 16;
+	private static final int maxDeltas = 8;
+	private QueueJournal journal = null;
+
+	/*
+	 * The journal is compacted once it has this many more records than there
+	 * are songs.
+	 */
+	private static final int journalSlack = 256;
+
+	/*
+	 * Position checkpoint, see checkpoint(). The path and position are the
+	 * ones last written.
+	 */
+	private File checkpointFile = null;
+	private String checkpointPath = null;
+	private int checkpointPosition = 0;
+	private int checkpointInterval = minCheckpointInterval;
+	private static final int minCheckpointInterval = 5000;
+	private static final int maxCheckpointInterval = 60000;
+	private static final int checkpointResolution = 1000;
 
 	@Override
 	public IBinder onBind(Intent intent) {
+		if (ACTION_REMOTE.equals(intent.getAction())) return requests.getBinder();
 		return new Proxy();
 	}
 
@@ -70,72 +383,193 @@ public class Player extends Service {
 		return START_STICKY;
 	}
 
-	public synchronized void registerHandler(Messenger m) {
-		clients.add(m);
+	public void registerHandler(Messenger m) {
+		send(Command.RegisterHandler, 0, 0, m);
 	}
 
-	public synchronized Song getPlaying() {
-		return playing;
+	/**
+	 * Unregister a client.
+	 * 
+	 * Takes effect right away, no signal is sent to the client afterwards.
+	 */
+	public void unregisterHandler(Messenger m) {
+		clients.remove(m);
 	}
 
-	public synchronized void setPlaying(Song song) {
+	private void doRegisterHandler(Messenger m) {
+		if (!clients.addIfAbsent(m)) return;
+
+		/*
+		 * Events sent before the registration have been missed. Tell the
+		 * client to catch up with the current snapshot and state.
+		 */
+		Bundle data = new Bundle();
+		data.putInt("seq", queueSeq);
+		Message msg = Message.obtain(null, Event.EnqueuedSongsChanged.ordinal());
+		msg.setData(data);
+		send(m, msg);
+		send(m, Message.obtain(null, Event.StateChanged.ordinal(), currentPosition(),
+				currentDuration()));
+	}
+
+	public Song getPlaying() {
+		return queue.getPlaying();
+	}
+
+	public void setPlaying(Song song) {
+		send(Command.SetPlaying, 0, 0, song);
+	}
+
+	private void doSetPlaying(Song song) {
+		if (Song.equals(playing, song)) return;
+
 		playing = song;
+		emitPlayingChanged();
 	}
 
-	public synchronized State getState() {
-		return state;
+	public State getState() {
+		return status.state;
+	}
+
+	/**
+	 * Check whether stop() has been called while IS_PREPARING, i.e. the song
+	 * will be left paused once prepared.
+	 */
+	public boolean isPausePending() {
+		return status.isPausePending;
 	}
 
-	private synchronized void setState(State s) {
+	private void setState(State s) {
 		state = s;
-		emit(Event.StateChanged);
+		isStatusDirty = true;
+		emit(Event.StateChanged, currentPosition(), currentDuration(), null);
+
+		if (s == State.IS_PLAYING) {
+			checkpointInterval = minCheckpointInterval;
+			scheduleCheckpoint(checkpointInterval);
+		}
+		else {
+			scheduleCheckpoint(0);
+		}
+	}
+
+	/**
+	 * Tell clients about a change which doesn't change the state, e.g. a
+	 * command received while IS_PREPARING.
+	 */
+	private void emitStatus() {
+		isStatusDirty = true;
+		emit(Event.StateChanged, currentPosition(), currentDuration(), null);
 	}
 
 	/**
 	 * Get current song duration in msecs.
+	 * 
+	 * While IS_PREPARING it's 0, unless known from a checkpoint.
 	 */
-	public synchronized int getDuration() {
+	public int getDuration() {
+		return status.duration;
+	}
+
+	/**
+	 * Get current song position in msecs.
+	 * 
+	 * While playing, this is extrapolated from the last published status.
+	 */
+	public int getPosition() {
+		Status s = status;
+		if (s.state != State.IS_PLAYING) return s.position;
+
+		return (int) Math.min(s.position + SystemClock.uptimeMillis() - s.time, s.duration);
+	}
+
+	private int currentDuration() {
 		switch (state) {
 			case IS_PLAYING:
 			case IS_PAUSED:
 				return mp.getDuration();
 			case IS_STOPPED:
 				return 0;
+			case IS_PREPARING:
+				return pendingDuration;
 		}
 		return 0;
 	}
 
-	/**
-	 * Get current song position in msecs.
-	 */
-	public synchronized int getPosition() {
+	private int currentPosition() {
 		switch (state) {
 			case IS_PLAYING:
 			case IS_PAUSED:
 				return mp.getCurrentPosition();
 			case IS_STOPPED:
 				return 0;
+			case IS_PREPARING:
+				return Math.max(pendingSeek, 0);
 		}
 		return 0;
 	}
 
 	/**
-	 * Get a list for currently enqueued songs.
+	 * Get a snapshot of currently enqueued songs.
+	 * 
+	 * Snapshots are immutable and shared. A new one is built once per command
+	 * which has changed the queue and published before the command's events
+	 * are sent, so a client never sees an event newer than the snapshot.
 	 * 
 	 * @return
 	 */
-	public synchronized Song[] getEnqueuedSongs() {
-		return enqueuedSongs.toArray(new Song[] {});
+	public QueueSnapshot getQueue() {
+		return queue;
+	}
+
+	/**
+	 * Get the queue snapshot encoded for a client in another process.
+	 * 
+	 * The bundle may be sent as Message data, see Request.ShareQueue. Decode
+	 * it with SnapshotCodec.unpack() and readQueue().
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	public Bundle shareQueue() throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		SnapshotCodec.writeQueue(new DataOutputStream(buffer), queue);
+		return SnapshotCodec.pack(buffer.toByteArray(), new File(getCacheDir(), "queue.shared"));
+	}
+
+	/**
+	 * Get the saved library for a client in another process.
+	 * 
+	 * The bundle holds a descriptor as "fd", see Request.ShareLibrary. Decode
+	 * it with SnapshotCodec.unpack() and Library.read().
+	 * 
+	 * @return
+	 * @throws IOException
+	 *             if the library hasn't been saved yet
+	 */
+	public Bundle shareLibrary() throws IOException {
+		Bundle bundle = new Bundle();
+		bundle.putParcelable("fd", library.share());
+		return bundle;
 	}
 
 	/**
 	 * Get a list of all available songs.
 	 * 
 	 * 
-	 * The function returns a list of songs stored in the media database from an
+	 * The function loads a list of songs stored in the media database from an
 	 * external storage (i.e. memory card).
+	 * 
+	 * The list is served from the library cache. It is refreshed incrementally
+	 * on a background thread and the same array is delivered as long as
+	 * nothing has changed. The Player itself isn't locked meanwhile.
+	 * 
+	 * @param listener
+	 *            called on the main thread, possibly several times with
+	 *            partial results
+	 * @return a handle to cancel the request with
 	 */
-	public synchronized Song[] getAllSongs() {
+	public Library.Task loadAllSongs(Library.Listener listener) {
 		/*
 		 * Doing a query() would result in a fatal error when external storage
 		 * is missing.
@@ -144,48 +578,141 @@ public class Player extends Service {
 		 */
 		if (!isExternalStorageMounted()) {
 			Toast.makeText(this, R.string.msg_err_notmounted, Toast.LENGTH_LONG).show();
-			return new Song[] {};
+			library.clear();
 		}
 
-		/*
-		 * Fixme: Should a Song have more info?
-		 */
-		ArrayList<Song> list = new ArrayList<Song>();
-		Uri uri = android.provider.MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
-		String[] columns = { MediaStore.Audio.Media.DATA, MediaStore.Audio.Media.DISPLAY_NAME };
-		Cursor c = getContentResolver().query(uri, columns, null, null,
-				MediaStore.Audio.Media.DATE_ADDED + " DESC");
-
-		int dataIndex = c.getColumnIndex(MediaStore.Audio.Media.DATA);
-		int displayIndex = c.getColumnIndex(MediaStore.Audio.Media.DISPLAY_NAME);
+		return library.load(listener);
+	}
 
-		if (c.moveToFirst()) {
-			do {
-				list.add(new Song(c.getString(dataIndex), c.getString(displayIndex)));
-			} while (c.moveToNext());
-		}
-		c.close();
+	/**
+	 * Enqueue a song at a given index.
+	 * 
+	 * Enqueueing an already enqueued song moves it.
+	 * 
+	 * @param song
+	 * @param index
+	 *            value less than 0 appends
+	 */
+	public void enqueueSong(Song song, int index) {
+		send(Command.EnqueueSong, index, 0, song);
+	}
 
-		return list.toArray(new Song[] {});
+	private void doEnqueueSong(Song song, int index) {
+		doEnqueueSongs(new Song[] { song }, index);
 	}
 
 	/**
-	 * Enqueue a song at a given index.
+	 * Enqueue a song right after the now playing one.
+	 * 
+	 * If nothing is playing the song is enqueued at index 0.
 	 * 
 	 * @param song
+	 */
+	public void enqueueSongNext(Song song) {
+		send(Command.EnqueueSongNext, 0, 0, song);
+	}
+
+	private void doEnqueueSongNext(Song song) {
+		doEnqueueSong(song, enqueuedSongs.indexOf(playing) + 1);
+	}
+
+	/**
+	 * Enqueue songs at a given index.
+	 * 
+	 * This is a single operation emitting a single event, no matter how many
+	 * songs there are.
+	 * 
+	 * @param songs
 	 * @param index
 	 *            value less than 0 appends
 	 */
-	public synchronized void enqueueSong(Song song, int index) {
-		if (index >= 0) {
-			if (index > enqueuedSongs.size()) index = 0;
-			enqueuedSongs.add(index, song);
+	public void enqueueSongs(Song[] songs, int index) {
+		send(Command.EnqueueSongs, index, 0, songs);
+	}
+
+	private void doEnqueueSongs(Song[] songs, int index) {
+		if (songs.length == 0) return;
+
+		/*
+		 * Songs which are already enqueued get moved. That's not a plain
+		 * insertion, so clients are told to take a snapshot.
+		 */
+		boolean isMove = false;
+		for (Song song : songs) {
+			if (enqueuedSongs.contains(song)) isMove = true;
+		}
+
+		if (index < 0) index = enqueuedSongs.size();
+		if (index > enqueuedSongs.size()) index = 0;
+		enqueuedSongs.addAll(index, songs);
+
+		if (isMove) {
+			emitQueueChanged();
 		}
 		else {
-			enqueuedSongs.add(song);
+			Bundle data = new Bundle();
+			data.putParcelableArray("songs", songs);
+			emitQueueEvent(Event.SongsInserted, index, songs.length, data);
 		}
+	}
+
+	/**
+	 * Remove all songs.
+	 * 
+	 * The playback is reset.
+	 */
+	public void clearEnqueuedSongs() {
+		send(Command.ClearEnqueuedSongs, 0, 0, null);
+	}
 
-		emit(Event.EnqueuedSongsChanged);
+	private void doClearEnqueuedSongs() {
+		doReset();
+		enqueuedSongs.clear();
+		emitQueueChanged();
+	}
+
+	/**
+	 * Replace all songs.
+	 * 
+	 * The playback is reset unless the now playing song is among the new
+	 * songs.
+	 * 
+	 * @param songs
+	 */
+	public void setEnqueuedSongs(Song[] songs) {
+		send(Command.SetEnqueuedSongs, 0, 0, songs);
+	}
+
+	private void doSetEnqueuedSongs(Song[] songs) {
+		enqueuedSongs.clear();
+		enqueuedSongs.addAll(0, songs);
+		if (playing != null && !enqueuedSongs.contains(playing)) doReset();
+		emitQueueChanged();
+	}
+
+	/**
+	 * Reorder all songs.
+	 * 
+	 * A permutation which doesn't match the queue size (e.g. since a song has
+	 * finished meanwhile) is ignored.
+	 * 
+	 * @param permutation
+	 *            permutation[i] is the current index of the song to be put
+	 *            at index i
+	 */
+	public void permuteEnqueuedSongs(int[] permutation) {
+		send(Command.PermuteEnqueuedSongs, 0, 0, permutation);
+	}
+
+	private void doPermuteEnqueuedSongs(int[] permutation) {
+		Song[] songs = enqueuedSongs.toArray();
+		if (permutation.length != songs.length) return;
+
+		Song[] permuted = new Song[songs.length];
+		for (int i = 0; i < songs.length; i++) {
+			permuted[i] = songs[permutation[i]];
+		}
+		doSetEnqueuedSongs(permuted);
 	}
 
 	/**
@@ -199,15 +726,23 @@ public class Player extends Service {
 	 * @param song
 	 * @param offset
 	 */
-	public synchronized void moveSong(Song song, int offset) {
-		int index = enqueuedSongs.indexOf(song) + offset;
+	public void moveSong(Song song, int offset) {
+		send(Command.MoveSong, offset, 0, song);
+	}
+
+	private void doMoveSong(Song song, int offset) {
+		if (!enqueuedSongs.contains(song)) return;
+
+		int from = enqueuedSongs.indexOf(song);
+		int index = from + offset;
 
 		if (index < 0) index = 0;
 		if (index >= enqueuedSongs.size()) index = enqueuedSongs.size() - 1;
+		if (index == from) return;
 
 		enqueuedSongs.remove(song);
 		enqueuedSongs.add(index, song);
-		emit(Event.EnqueuedSongsChanged);
+		emitQueueEvent(Event.SongMoved, from, index, null);
 	}
 
 	/**
@@ -220,62 +755,86 @@ public class Player extends Service {
 	 * 
 	 * @param song
 	 */
-	public synchronized void removeSong(Song song) {
+	public void removeSong(Song song) {
+		send(Command.RemoveSong, 0, 0, song);
+	}
+
+	private void doRemoveSong(Song song) {
 		if (playing == song) {
-			playNext();
+			doPlayNext();
 		}
 		else {
+			int index = enqueuedSongs.indexOf(song);
+			if (index < 0) return;
+
 			enqueuedSongs.remove(song);
-			emit(Event.EnqueuedSongsChanged);
+			emitQueueEvent(Event.SongsRemoved, index, 1, null);
 		}
 	}
 
 	/**
 	 * Make sure the playback is on.
 	 * 
-	 * This call is valid in any state.
+	 * This call is valid in any state. It doesn't block on preparing the song;
+	 * the state becomes IS_PREPARING and a StateChanged event is emitted once
+	 * the playback has actually started.
 	 */
-	public synchronized void play() {
+	public void play() {
+		send(Command.Play, 0, 0, null);
+	}
+
+	private void doPlay() {
 		switch (state) {
 			case IS_STOPPED:
 				validate();
 				if (playing != null) {
+					switchStart = SystemClock.elapsedRealtime();
 					try {
-						mp = new MediaPlayer();
-						mp.setOnCompletionListener(new OnCompletionListener() {
-							@Override
-							public void onCompletion(MediaPlayer mp) {
-								playNext();
-							}
-						});
-						mp.setOnErrorListener(new OnErrorListener() {
-							@Override
-							public boolean onError(MediaPlayer mp, int what, int extra) {
-								Toast.makeText(getApplicationContext(), R.string.msg_mp_error,
-										Toast.LENGTH_LONG).show();
-								mp.reset();
-								mp.release();
-								setState(State.IS_STOPPED);
-								return false;
-							}
-						});
-						mp.setDataSource(playing.getPath());
-						mp.prepare();
-						mp.start();
-						setState(State.IS_PLAYING);
+						/*
+						 * Take over the player prepared ahead of time if it's
+						 * for the right song. Otherwise prepare one now.
+						 */
+						if (nextMp != null && isNextPrepared && Song.equals(nextSong, playing)) {
+							if (completionTime != 0) Stats.gaplessHits.inc();
+							mp = nextMp;
+							nextMp = null;
+							nextSong = null;
+							isNextPrepared = false;
+							mp.start();
+							setState(State.IS_PLAYING);
+							recordSwitchLatency();
+							prepareNext();
+						}
+						else {
+							if (completionTime != 0) Stats.gaplessMisses.inc();
+							releaseNext();
+							mp = obtainMediaPlayer();
+							mp.setDataSource(playing.getPath());
+							isPausePending = false;
+							pendingSeek = -1;
+							pendingDuration = 0;
+							prepareStart = SystemClock.elapsedRealtime();
+							mp.prepareAsync();
+							setState(State.IS_PREPARING);
+						}
 					}
 					catch (Exception e) {
 						Toast.makeText(
 								this,
 								String.format(getText(R.string.msg_mp_error_info).toString(),
 										e.getMessage()), Toast.LENGTH_LONG).show();
-						mp.reset();
-						mp.release();
+						recycleMediaPlayer(mp);
+						mp = null;
 						setState(State.IS_STOPPED);
 					}
 				}
 				break;
 
+			case IS_PREPARING:
+				isPausePending = false;
+				emitStatus();
+				break;
+
 			case IS_PLAYING:
 				/* ignore */
 				break;
@@ -287,38 +846,226 @@ public class Player extends Service {
 		}
 	}
 
+	/**
+	 * Start the playback once play() has prepared a song.
+	 * 
+	 * Commands received in the meantime are applied here.
+	 */
+	private void onPlayingPrepared(MediaPlayer mp) {
+		/* The preparation has been cancelled by reset() */
+		if (mp != this.mp || state != State.IS_PREPARING) return;
+
+		Stats.prepare.add(SystemClock.elapsedRealtime() - prepareStart);
+		if (pendingSeek >= 0) mp.seekTo(pendingSeek);
+		if (isPausePending) {
+			setState(State.IS_PAUSED);
+		}
+		else {
+			mp.start();
+			setState(State.IS_PLAYING);
+			recordSwitchLatency();
+		}
+		isPausePending = false;
+		pendingSeek = -1;
+		pendingDuration = 0;
+		completionTime = 0;
+		prepareNext();
+	}
+
+	/**
+	 * Get an idle player, reusing a pooled one if possible.
+	 * 
+	 * Pooled players keep their native resources and the listeners attached
+	 * when they were created, so switching tracks doesn't pay for setting them
+	 * up again.
+	 */
+	private MediaPlayer obtainMediaPlayer() {
+		int n = idlePlayers.size();
+		if (n > 0) return idlePlayers.remove(n - 1);
+
+		MediaPlayer mp = new MediaPlayer();
+		mp.setOnCompletionListener(completionListener);
+		mp.setOnErrorListener(errorListener);
+		mp.setOnPreparedListener(preparedListener);
+		return mp;
+	}
+
+	/**
+	 * Return a player to the pool.
+	 * 
+	 * The player is reset, which also cancels a pending preparation. Players
+	 * beyond maxIdlePlayers are released.
+	 */
+	private void recycleMediaPlayer(MediaPlayer mp) {
+		mp.reset();
+		if (idlePlayers.size() < maxIdlePlayers) {
+			idlePlayers.add(mp);
+		}
+		else {
+			mp.release();
+		}
+	}
+
+	private void releaseIdlePlayers() {
+		for (MediaPlayer mp : idlePlayers) {
+			mp.release();
+		}
+		idlePlayers.clear();
+	}
+
+	private void recordSwitchLatency() {
+		long now = SystemClock.elapsedRealtime();
+		Stats.switchTime.add(now - switchStart);
+		if (completionTime != 0) Stats.gap.add(now - completionTime);
+		completionTime = 0;
+	}
+
+	/*
+	 * Media players are created on the playback thread, so their callbacks
+	 * are run there as well.
+	 */
+	private final OnCompletionListener completionListener = new OnCompletionListener() {
+		@Override
+		public void onCompletion(MediaPlayer mp) {
+			completionTime = SystemClock.elapsedRealtime();
+			doPlayNext();
+
+			/* The gap is recorded once the next song starts, if it does */
+			if (state != State.IS_PREPARING) completionTime = 0;
+			schedulePublish();
+		}
+	};
+
+	private final OnPreparedListener preparedListener = new OnPreparedListener() {
+		@Override
+		public void onPrepared(MediaPlayer mp) {
+			if (mp == nextMp) {
+				isNextPrepared = true;
+				Stats.prepareNext.add(SystemClock.elapsedRealtime() - nextPrepareStart);
+			}
+			else {
+				onPlayingPrepared(mp);
+			}
+			schedulePublish();
+		}
+	};
+
+	private final OnErrorListener errorListener = new OnErrorListener() {
+		@Override
+		public boolean onError(MediaPlayer mp, int what, int extra) {
+			Stats.playerErrors.inc();
+
+			/*
+			 * A failure to prepare the next song is not fatal. It'll be
+			 * prepared again (and reported) once it's its turn.
+			 */
+			if (mp == nextMp) {
+				releaseNext();
+				return true;
+			}
+
+			Toast.makeText(getApplicationContext(), R.string.msg_mp_error, Toast.LENGTH_LONG)
+					.show();
+			if (mp == Player.this.mp) {
+				Player.this.mp = null;
+				recycleMediaPlayer(mp);
+			}
+			completionTime = 0;
+			setState(State.IS_STOPPED);
+			schedulePublish();
+			return false;
+		}
+	};
+
+	/**
+	 * Prepare the song following the now playing one in the background.
+	 * 
+	 * When the current song completes, the next one starts right away instead
+	 * of waiting for setDataSource() and prepare(), which avoids a gap
+	 * between tracks. This is called whenever the queue changes, so that a
+	 * player prepared for a song which is no longer next gets dropped.
+	 */
+	private void prepareNext() {
+		if (mp == null || playing == null || state == State.IS_PREPARING) return;
+
+		int index = enqueuedSongs.indexOf(playing);
+		if (index < 0) return;
+
+		Song next = index + 1 < enqueuedSongs.size() ? enqueuedSongs.get(index + 1) : null;
+		if (Song.equals(next, nextSong)) return;
+
+		releaseNext();
+		if (next == null) return;
+
+		try {
+			nextMp = obtainMediaPlayer();
+			nextSong = next;
+			nextMp.setDataSource(next.getPath());
+			nextPrepareStart = SystemClock.elapsedRealtime();
+			nextMp.prepareAsync();
+		}
+		catch (Exception e) {
+			releaseNext();
+		}
+	}
+
+	private void releaseNext() {
+		if (nextMp != null) recycleMediaPlayer(nextMp);
+		nextMp = null;
+		nextSong = null;
+		isNextPrepared = false;
+	}
+
 	/**
 	 * Remove the currently playing song and play the next one.
 	 * 
 	 * This call is valid in any state.
 	 */
-	public synchronized void playNext() {
+	public void playNext() {
+		send(Command.PlayNext, 0, 0, null);
+	}
+
+	private void doPlayNext() {
 		if (playing != null) {
 			State oldstate = state;
 			int idx = enqueuedSongs.indexOf(playing);
-			enqueuedSongs.remove(playing);
-			emit(Event.EnqueuedSongsChanged);
-			reset();
+			if (enqueuedSongs.remove(playing)) {
+				emitQueueEvent(Event.SongsRemoved, idx, 1, null);
+			}
+			boolean wasPlaying = oldstate == State.IS_PLAYING
+					|| (oldstate == State.IS_PREPARING && !isPausePending);
+			doReset();
 
 			/*
 			 * Idx now point to the next song (since the previous nowPlaying has
 			 * been removed thus shifting array items).
 			 */
-			if (idx < enqueuedSongs.size()) {
-				playing = enqueuedSongs.get(idx);
+			if (idx >= 0 && idx < enqueuedSongs.size()) {
+				doSetPlaying(enqueuedSongs.get(idx));
+			}
+			else {
+				doSetPlaying(null);
 			}
-			if (oldstate == State.IS_PLAYING)
-				play();
+			if (wasPlaying)
+				doPlay();
 		}
 	}
 
 	/**
 	 * Stop playback.
 	 * 
-	 * Yields effect only when IS_PLAYING.
+	 * Yields effect only when IS_PLAYING or IS_PREPARING.
 	 */
-	public synchronized void stop() {
+	public void stop() {
+		send(Command.Stop, 0, 0, null);
+	}
+
+	private void doStop() {
 		switch (state) {
+			case IS_PREPARING:
+				isPausePending = true;
+				emitStatus();
+				break;
 			case IS_PLAYING:
 				mp.pause();
 				setState(State.IS_PAUSED);
@@ -333,11 +1080,23 @@ public class Player extends Service {
 	 * 
 	 * @param position
 	 */
-	public synchronized void seek(int position) {
+	public void seek(int position) {
+		send(Command.Seek, position, 0, null);
+	}
+
+	private void doSeek(int position) {
 		switch (state) {
+			case IS_PREPARING:
+				pendingSeek = position;
+				emitStatus();
+				break;
 			case IS_PLAYING:
 			case IS_PAUSED:
 				mp.seekTo(position);
+				isStatusDirty = true;
+				emit(Event.StateChanged, position, mp.getDuration(), null);
+				checkpointInterval = minCheckpointInterval;
+				scheduleCheckpoint(0);
 				break;
 		}
 	}
@@ -349,15 +1108,22 @@ public class Player extends Service {
 	 * 
 	 * Yields effect always but when IS_STOPPED.
 	 */
-	public synchronized void reset() {
+	public void reset() {
+		send(Command.Reset, 0, 0, null);
+	}
+
+	private void doReset() {
 		switch (state) {
 			case IS_PLAYING:
 				mp.stop();
 			case IS_PAUSED:
-				mp.reset();
-				mp.release();
+			case IS_PREPARING:
+				recycleMediaPlayer(mp);
 				mp = null;
-				playing = null;
+				isPausePending = false;
+				pendingSeek = -1;
+				pendingDuration = 0;
+				doSetPlaying(null);
 				isOnHoldByCall = false;
 				isOnHoldByHeadset = false;
 				setState(State.IS_STOPPED);
@@ -370,13 +1136,13 @@ public class Player extends Service {
 	 * 
 	 * This is a helper function.
 	 */
-	private synchronized void validate() {
+	private void validate() {
 		if (enqueuedSongs.size() == 0) {
-			reset();
+			doReset();
 		}
 		else {
 			if (playing == null) {
-				playing = enqueuedSongs.get(0);
+				doSetPlaying(enqueuedSongs.get(0));
 			}
 		}
 	}
@@ -386,14 +1152,63 @@ public class Player extends Service {
 	 * 
 	 * Will playback on if all isOnHold* variables are false. 
 	 */
-	public synchronized void play_try() {
+	public void play_try() {
+		send(Command.PlayTry, 0, 0, null);
+	}
+
+	private void doPlayTry() {
 		if (!isOnHoldByCall && !isOnHoldByHeadset)
-			play();
+			doPlay();
 	}
 
+	/**
+	 * Start the service.
+	 * 
+	 * Only what's needed to show the queue and resume playback is done here,
+	 * as clients bind while their first frame is yet to be drawn. The rest is
+	 * done by startDeferred() once the main thread is idle.
+	 */
 	@Override
 	public void onCreate() {
 		super.onCreate();
+		long start = SystemClock.uptimeMillis();
+
+		library = new Library(this);
+
+		playbackThread = new HandlerThread("Playback");
+		playbackThread.start();
+		playback = new PlaybackHandler(playbackThread.getLooper());
+		requests = new Messenger(new RequestHandler(playbackThread.getLooper()));
+		playback.post(new Runnable() {
+			@Override
+			public void run() {
+				restoreQueue();
+				restorePosition();
+				schedulePublish();
+			}
+		});
+
+		Looper.myQueue().addIdleHandler(startupIdleHandler);
+		Stats.serviceCreate.add(SystemClock.uptimeMillis() - start);
+	}
+
+	private final MessageQueue.IdleHandler startupIdleHandler = new MessageQueue.IdleHandler() {
+		@Override
+		public boolean queueIdle() {
+			startDeferred();
+			return false;
+		}
+	};
+
+	/**
+	 * Second stage of the startup.
+	 * 
+	 * Goes foreground, starts listening to calls, headsets and storage, and
+	 * brings the library cache up to date in the background, so that SongList
+	 * gets it right away.
+	 */
+	private void startDeferred() {
+		long start = SystemClock.uptimeMillis();
 
 		Notification n = new Notification(
 				R.drawable.icon,
@@ -416,14 +1231,8 @@ public class Player extends Service {
 			@Override
 			public void onReceive(Context context, Intent intent) {
 				String state = intent.getStringExtra(TelephonyManager.EXTRA_STATE);
-				if (state.compareTo(TelephonyManager.EXTRA_STATE_IDLE) == 0) {
-					isOnHoldByCall = false;
-					play_try();
-				}
-				else {
-					isOnHoldByCall = true;
-					stop();
-				}
+				boolean isOnHold = state.compareTo(TelephonyManager.EXTRA_STATE_IDLE) != 0;
+				send(Command.HoldByCall, isOnHold ? 1 : 0, 0, null);
 			}
 		}, new IntentFilter(TelephonyManager.ACTION_PHONE_STATE_CHANGED));
 
@@ -446,12 +1255,10 @@ public class Player extends Service {
 			public void onReceive(Context context, Intent intent) {
 				switch (intent.getIntExtra("state", -1)) {
 					case 0: /* unplugged */
-						isOnHoldByHeadset = true;
-						stop();
+						send(Command.HoldByHeadset, 1, 0, null);
 						break;
 					case 1: /* plugged */
-						isOnHoldByHeadset = false;
-						play_try();
+						send(Command.HoldByHeadset, 0, 0, null);
 						break;
 				}
 			}
@@ -460,8 +1267,7 @@ public class Player extends Service {
 		registerReceiver(new BroadcastReceiver() {
 			@Override
 			public void onReceive(Context context, Intent intent) {
-				isOnHoldByHeadset = true;
-				stop();
+				send(Command.HoldByHeadset, 1, 0, null);
 			}
 		}, new IntentFilter(AudioManager.ACTION_AUDIO_BECOMING_NOISY));
 
@@ -471,42 +1277,458 @@ public class Player extends Service {
 		registerReceiver(new BroadcastReceiver() {
 			@Override
 			public void onReceive(Context context, Intent intent) {
-				stop();
-				reset();
-				enqueuedSongs.clear();
+				clearEnqueuedSongs();
+				library.clear();
 				Toast.makeText(getApplicationContext(), R.string.msg_err_ejected, Toast.LENGTH_LONG)
 						.show();
 			}
 		}, new IntentFilter(Intent.ACTION_MEDIA_EJECT));
 
+		library.prefetch();
+
 		Toast.makeText(this, R.string.msg_service_started, Toast.LENGTH_SHORT).show();
+		Stats.serviceDeferred.add(SystemClock.uptimeMillis() - start);
 	}
 
 	@Override
 	public void onDestroy() {
+		Looper.myQueue().removeIdleHandler(startupIdleHandler);
 		stopForeground(true);
 		Toast.makeText(this, R.string.msg_service_stopped, Toast.LENGTH_LONG).show();
-		reset();
+		library.close();
+
+		/*
+		 * Commands sent before are still handled. The thread quits once
+		 * everything is released.
+		 * 
+		 * The position is saved and the journal closed before the playback is
+		 * reset, so that neither records the reset. A new instance then
+		 * resumes the song where it was left.
+		 */
+		playback.post(new Runnable() {
+			@Override
+			public void run() {
+				checkpoint();
+				try {
+					journal.close();
+				}
+				catch (IOException e) {
+					Log.w(TAG, "Can't close the queue journal", e);
+				}
+				journal = null;
+
+				doReset();
+				playback.removeCallbacks(checkpointRunnable);
+				releaseNext();
+				releaseIdlePlayers();
+				publish();
+				playbackThread.quit();
+			}
+		});
 		super.onDestroy();
 	}
 
+	@Override
+	public void onLowMemory() {
+		playback.post(new Runnable() {
+			@Override
+			public void run() {
+				releaseIdlePlayers();
+			}
+		});
+		super.onLowMemory();
+	}
+
 	/**
 	 * Emit a signal that is propagated to listening clients.
 	 * 
+	 * Signals are merged and sent by publish().
+	 * 
 	 * @param e
 	 */
-	private void emit(Event e) {
-		for (Messenger m : clients) {
+	private void emit(Event e, int arg1, int arg2, Bundle data) {
+		Message msg = Message.obtain(null, e.ordinal(), arg1, arg2);
+		if (data != null) msg.setData(data);
+		pendingEvents.add(msg);
+		Stats.eventsEmitted.inc();
+	}
+
+	private void send(Command c, int arg1, int arg2, Object obj) {
+		Message.obtain(playback, c.ordinal(), arg1, arg2, obj).sendToTarget();
+	}
+
+	private void send(Messenger m, Message msg) {
+		try {
+			m.send(msg);
+			Stats.eventsSent.inc();
+		}
+		catch (RemoteException exception) {
+			/* The client must've died */
+			if (clients.remove(m)) Stats.deadClients.inc();
+		}
+	}
+
+	private final Runnable publishRunnable = new Runnable() {
+		@Override
+		public void run() {
+			publish();
+		}
+	};
+
+	/**
+	 * Publish once the commands queued up to now are handled, but not more
+	 * often than once per publishInterval.
+	 */
+	private void schedulePublish() {
+		if (isPublishPending) return;
+
+		isPublishPending = true;
+		playback.postAtTime(publishRunnable,
+				Math.max(SystemClock.uptimeMillis(), lastPublish + publishInterval));
+	}
+
+	/**
+	 * Make the outcome of commands visible to other threads.
+	 * 
+	 * The queue snapshot and the status are published first, then the merged
+	 * signals are sent. This runs on the playback thread, see
+	 * schedulePublish().
+	 */
+	private void publish() {
+		playback.removeCallbacks(publishRunnable);
+		isPublishPending = false;
+		lastPublish = SystemClock.uptimeMillis();
+
+		coalesce();
+		if (isQueueDirty) {
+			queue = new QueueSnapshot(enqueuedSongs.toArray(), enqueuedSongs.indexOf(playing),
+					queueSeq);
+			isQueueDirty = false;
+		}
+		if (isStatusDirty) {
+			status = new Status(state, isPausePending, currentPosition(), currentDuration(),
+					SystemClock.uptimeMillis());
+			isStatusDirty = false;
+		}
+		if (pendingEvents.isEmpty()) return;
+
+		long start = System.nanoTime();
+		for (Message msg : pendingEvents) {
+			for (Messenger m : clients) {
+				send(m, Message.obtain(msg));
+			}
+			msg.recycle();
+		}
+		pendingEvents.clear();
+		Stats.fanOut.add((System.nanoTime() - start) / 1000);
+	}
+
+	/**
+	 * Merge pending signals.
+	 * 
+	 * Only the last StateChanged and the last PlayingChanged are kept, as
+	 * they carry absolute values. If the queue has changed as a whole, or more
+	 * than maxDeltas deltas have piled up, all queue signals are replaced by a
+	 * single EnqueuedSongsChanged.
+	 * 
+	 * Sequence numbers are assigned afterwards, so they stay consecutive.
+	 */
+	private void coalesce() {
+		int lastState = -1;
+		int lastPlaying = -1;
+		int deltas = 0;
+		boolean isChanged = false;
+		for (int i = 0; i < pendingEvents.size(); i++) {
+			switch (Event.values()[pendingEvents.get(i).what]) {
+				case StateChanged:
+					lastState = i;
+					break;
+				case PlayingChanged:
+					lastPlaying = i;
+					break;
+				case EnqueuedSongsChanged:
+					isChanged = true;
+					break;
+				default:
+					deltas++;
+					break;
+			}
+		}
+		if (deltas > maxDeltas) isChanged = true;
+
+		int n = 0;
+		for (int i = 0; i < pendingEvents.size(); i++) {
+			Message msg = pendingEvents.get(i);
+			Event e = Event.values()[msg.what];
+			boolean isKept;
+			switch (e) {
+				case StateChanged:
+					isKept = i == lastState;
+					break;
+				case PlayingChanged:
+					isKept = i == lastPlaying && !isChanged;
+					break;
+				case EnqueuedSongsChanged:
+					isKept = false;
+					break;
+				default:
+					isKept = !isChanged;
+					break;
+			}
+
+			if (isKept) {
+				if (e != Event.StateChanged) msg.getData().putInt("seq", ++queueSeq);
+				pendingEvents.set(n++, msg);
+			}
+			else {
+				msg.recycle();
+			}
+		}
+		while (pendingEvents.size() > n) {
+			pendingEvents.remove(pendingEvents.size() - 1);
+		}
+
+		if (isChanged) {
+			Message msg = Message.obtain(null, Event.EnqueuedSongsChanged.ordinal());
+			msg.getData().putInt("seq", ++queueSeq);
+			pendingEvents.add(msg);
+		}
+	}
+
+	private void emitQueueEvent(Event e, int arg1, int arg2, Bundle data) {
+		isQueueDirty = true;
+		prepareNext();
+		record(e, arg1, arg2, data);
+		emit(e, arg1, arg2, data);
+	}
+
+	/**
+	 * Restore the queue stored by a previous instance.
+	 * 
+	 * The playback isn't resumed, but the now playing song is kept.
+	 * 
+	 * The queue changes even if nothing could be restored, so that clients
+	 * waiting for the restored queue see a version past 0 in any case.
+	 */
+	private void restoreQueue() {
+		QueueJournal journal = new QueueJournal(getFilesDir());
+		try {
+			QueueSnapshot s = journal.restore();
+			enqueuedSongs.addAll(0, s.getSongs());
+			playing = s.getPlaying();
+		}
+		catch (IOException e) {
+			Log.w(TAG, "Can't restore the queue", e);
+		}
+		emitQueueChanged();
+
+		/* The restored queue has just been written, don't record it again */
+		this.journal = journal;
+	}
+
+	/**
+	 * Prepare the now playing song at the checkpointed position.
+	 * 
+	 * The song is left paused. This relies on commands being coalesced while
+	 * IS_PREPARING.
+	 */
+	private void restorePosition() {
+		checkpointFile = new File(getFilesDir(), "position");
+		int duration = 0;
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(checkpointFile));
 			try {
-				m.send(Message.obtain(null, e.ordinal()));
+				if (in.readBoolean()) {
+					checkpointPath = in.readUTF();
+					checkpointPosition = in.readInt();
+
+					/* Older checkpoints lack the duration */
+					if (in.available() > 0) duration = in.readInt();
+				}
 			}
-			catch (RemoteException exception) {
-				/* The client must've died */
-				clients.remove(m);
+			finally {
+				in.close();
+			}
+		}
+		catch (FileNotFoundException e) {
+			return;
+		}
+		catch (IOException e) {
+			Log.w(TAG, "Can't read the position checkpoint", e);
+			return;
+		}
+
+		if (playing == null || !playing.getPath().equals(checkpointPath)) return;
+		if (!isExternalStorageMounted()) return;
+
+		doPlay();
+		pendingDuration = duration;
+		doStop();
+		doSeek(checkpointPosition);
+	}
+
+	/**
+	 * Checkpoint the position after a delay.
+	 * 
+	 * A pending checkpoint is replaced, so a burst of calls results in a
+	 * single write.
+	 */
+	private void scheduleCheckpoint(int delay) {
+		playback.removeCallbacks(checkpointRunnable);
+		playback.postDelayed(checkpointRunnable, delay);
+	}
+
+	private final Runnable checkpointRunnable = new Runnable() {
+		@Override
+		public void run() {
+			checkpoint();
+		}
+	};
+
+	/**
+	 * Save the now playing song and position, so that a new instance may
+	 * resume it.
+	 * 
+	 * While playing, this reschedules itself with an interval doubled each
+	 * time, up to maxCheckpointInterval. Starting the playback and seeking
+	 * bring it back to minCheckpointInterval. Nothing is written unless the
+	 * song or position has changed noticeably.
+	 */
+	private void checkpoint() {
+		String path = null;
+		int position = 0;
+		int duration = 0;
+		switch (state) {
+			case IS_PLAYING:
+			case IS_PAUSED:
+				path = playing.getPath();
+				position = mp.getCurrentPosition();
+				duration = mp.getDuration();
+				break;
+			case IS_PREPARING:
+				/* Keep whatever has been saved */
+				return;
+		}
+
+		if (state == State.IS_PLAYING) {
+			checkpointInterval = Math.min(checkpointInterval * 2, maxCheckpointInterval);
+			playback.postDelayed(checkpointRunnable, checkpointInterval);
+		}
+
+		if (TextUtils.equals(path, checkpointPath)
+				&& Math.abs(position - checkpointPosition) < checkpointResolution) return;
+
+		long start = SystemClock.elapsedRealtime();
+		File tmp = new File(checkpointFile.getPath() + ".tmp");
+		try {
+			FileOutputStream file = new FileOutputStream(tmp);
+			DataOutputStream out = new DataOutputStream(file);
+			try {
+				out.writeBoolean(path != null);
+				if (path != null) {
+					out.writeUTF(path);
+					out.writeInt(position);
+					out.writeInt(duration);
+				}
+
+				/* Renaming an unsynced file may leave an empty one after a crash */
+				file.getFD().sync();
 			}
+			finally {
+				out.close();
+			}
+			if (!tmp.renameTo(checkpointFile)) throw new IOException("Can't rename " + tmp);
+			checkpointPath = path;
+			checkpointPosition = position;
+			Stats.checkpoints.inc();
+			Stats.checkpointTime.add(SystemClock.elapsedRealtime() - start);
+		}
+		catch (IOException e) {
+			Log.w(TAG, "Can't write the position checkpoint", e);
 		}
 	}
 
+	/**
+	 * Write a queue event to the journal.
+	 */
+	private void record(Event e, int arg1, int arg2, Bundle data) {
+		if (journal == null) return;
+
+		try {
+			switch (e) {
+				case SongsInserted:
+					Parcelable[] p = data.getParcelableArray("songs");
+					Song[] songs = new Song[p.length];
+					for (int i = 0; i < p.length; i++) {
+						songs[i] = (Song) p[i];
+					}
+					journal.inserted(arg1, songs);
+					break;
+				case SongsRemoved:
+					journal.removed(arg1, arg2);
+					break;
+				case SongMoved:
+					journal.moved(arg1, arg2);
+					break;
+				case PlayingChanged:
+					journal.playing(enqueuedSongs.indexOf(playing));
+					break;
+				case EnqueuedSongsChanged:
+					journal.compact(enqueuedSongs.toArray(), enqueuedSongs.indexOf(playing));
+					Stats.compactions.inc();
+					return;
+			}
+			Stats.journalRecords.inc();
+			if (journal.getRecordCount() > journalSlack + enqueuedSongs.size()) {
+				journal.compact(enqueuedSongs.toArray(), enqueuedSongs.indexOf(playing));
+				Stats.compactions.inc();
+			}
+		}
+		catch (IOException exception) {
+			Log.w(TAG, "Can't write the queue journal", exception);
+		}
+	}
+
+	private void emitQueueChanged() {
+		emitQueueEvent(Event.EnqueuedSongsChanged, 0, 0, null);
+	}
+
+	private void emitPlayingChanged() {
+		Bundle data = new Bundle();
+		data.putParcelable("song", playing);
+		emitQueueEvent(Event.PlayingChanged, 0, 0, data);
+	}
+
+	/**
+	 * Print the playback status and Stats.
+	 * 
+	 * Run "adb shell dumpsys activity service
+	 * com.michalkazior.simplemusicplayer/.Player" to get it. Only published
+	 * snapshots are read, so this doesn't wait for the playback thread.
+	 */
+	@Override
+	protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+		Status s = status;
+		QueueSnapshot q = queue;
+		writer.println("Player:");
+		writer.println("  state: " + s.state);
+		writer.println("  position: " + getPosition() + "/" + s.duration + " ms");
+		writer.println("  queue: " + q.size() + " songs, version " + q.getVersion());
+		writer.println("  clients: " + clients.size());
+		Stats.dump(writer);
+	}
+
+	/**
+	 * Get what dump() prints, for the Diagnostics activity.
+	 */
+	public String getDiagnostics() {
+		StringWriter s = new StringWriter();
+		PrintWriter writer = new PrintWriter(s);
+		dump(null, writer, new String[0]);
+		writer.flush();
+		return s.toString();
+	}
+
 	/**
 	 * Check whether external storage is mounted or not.
 	 */
@@ -0,0 +1,288 @@
+package com.michalkazior.simplemusicplayer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Durable copy of the play queue.
+ * 
+ * The queue is stored as a snapshot file plus a journal of the operations done
+ * since. Each operation is appended to the journal as a few bytes, so an edit
+ * never rewrites the whole queue. compact() writes a new snapshot and starts
+ * an empty journal.
+ * 
+ * Records refer to songs by index. Song ids are only valid within a process.
+ * 
+ * Both files begin with a generation number. If a journal's generation does
+ * not match the snapshot's, compaction was interrupted, and the journal is
+ * ignored. A torn record at the end of the journal is ignored too.
+ * 
+ * The class is not synchronized.
+ */
+class QueueJournal {
+	private static final int MAGIC = 0x534d5051; /* SMPQ */
+
+	private static final byte OP_INSERT = 1;
+	private static final byte OP_REMOVE = 2;
+	private static final byte OP_MOVE = 3;
+	private static final byte OP_PLAYING = 4;
+
+	private final File snapshotFile;
+	private final File journalFile;
+	private FileOutputStream out = null;
+	private int generation = 0;
+	private int records = 0;
+
+	/*
+	 * A record is assembled here and written with a single call.
+	 */
+	private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	private DataOutputStream record = new DataOutputStream(buffer);
+
+	QueueJournal(File dir) {
+		snapshotFile = new File(dir, "queue.snapshot");
+		journalFile = new File(dir, "queue.journal");
+	}
+
+	/**
+	 * Read the stored queue.
+	 * 
+	 * This must be called once before any other method. Songs are created
+	 * anew, so they get new ids.
+	 * 
+	 * @return snapshot of version 0, possibly empty
+	 */
+	QueueSnapshot restore() throws IOException {
+		ArrayList<Song> songs = new ArrayList<Song>();
+		Song playing = null;
+		boolean isValid = true;
+
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+					snapshotFile)));
+			try {
+				if (in.readInt() != MAGIC) throw new IOException("Bad queue snapshot");
+				generation = in.readInt();
+				int n = in.readInt();
+				int index = in.readInt();
+				songs.ensureCapacity(n);
+				for (int i = 0; i < n; i++) {
+					songs.add(readSong(in));
+				}
+				if (index >= 0 && index < n) playing = songs.get(index);
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (FileNotFoundException e) {
+			/* Nothing has been stored yet */
+		}
+		catch (IOException e) {
+			/* The journal can't be applied without the snapshot either */
+			songs.clear();
+			playing = null;
+			isValid = false;
+		}
+
+		if (isValid) {
+			try {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+						journalFile)));
+				try {
+					if (in.readInt() == MAGIC && in.readInt() == generation) {
+						playing = replay(in, songs, playing);
+					}
+				}
+				finally {
+					in.close();
+				}
+			}
+			catch (FileNotFoundException e) {
+				/* Nothing has been done since the snapshot */
+			}
+			catch (EOFException e) {
+				/* Torn header */
+			}
+		}
+
+		/*
+		 * The journal may end with a torn record. Compacting right away makes
+		 * it safe to append to.
+		 */
+		Song[] a = songs.toArray(new Song[songs.size()]);
+		int index = playing == null ? -1 : songs.indexOf(playing);
+		compact(a, index);
+		return new QueueSnapshot(a, index, 0);
+	}
+
+	private static Song replay(DataInputStream in, ArrayList<Song> songs, Song playing)
+			throws IOException {
+		try {
+			while (true) {
+				byte op = in.readByte();
+				switch (op) {
+					case OP_INSERT: {
+						int index = in.readInt();
+						int n = in.readInt();
+						Song[] inserted = new Song[n];
+						for (int i = 0; i < n; i++) {
+							inserted[i] = readSong(in);
+						}
+						if (index < 0 || index > songs.size()) return playing;
+						for (int i = 0; i < n; i++) {
+							songs.add(index + i, inserted[i]);
+						}
+						break;
+					}
+					case OP_REMOVE: {
+						int index = in.readInt();
+						int n = in.readInt();
+						if (index < 0 || n < 0 || index + n > songs.size()) return playing;
+						for (int i = 0; i < n; i++) {
+							songs.remove(index);
+						}
+						break;
+					}
+					case OP_MOVE: {
+						int from = in.readInt();
+						int to = in.readInt();
+						if (from < 0 || from >= songs.size() || to < 0 || to >= songs.size())
+							return playing;
+						songs.add(to, songs.remove(from));
+						break;
+					}
+					case OP_PLAYING: {
+						int index = in.readInt();
+						if (index >= songs.size()) return playing;
+						playing = index < 0 ? null : songs.get(index);
+						break;
+					}
+					default:
+						return playing;
+				}
+			}
+		}
+		catch (EOFException e) {
+			/* End of the journal, or a torn record */
+		}
+		return playing;
+	}
+
+	private static Song readSong(DataInputStream in) throws IOException {
+		String path = in.readUTF();
+		String title = in.readBoolean() ? in.readUTF() : null;
+		return new Song(path, title);
+	}
+
+	private static void writeSong(DataOutputStream out, Song song) throws IOException {
+		out.writeUTF(song.getPath());
+		out.writeBoolean(song.getTitle() != null);
+		if (song.getTitle() != null) out.writeUTF(song.getTitle());
+	}
+
+	/**
+	 * Get the number of records since the last compaction.
+	 */
+	int getRecordCount() {
+		return records;
+	}
+
+	void inserted(int index, Song[] songs) throws IOException {
+		record.writeByte(OP_INSERT);
+		record.writeInt(index);
+		record.writeInt(songs.length);
+		for (Song song : songs) {
+			writeSong(record, song);
+		}
+		append();
+	}
+
+	void removed(int index, int count) throws IOException {
+		record.writeByte(OP_REMOVE);
+		record.writeInt(index);
+		record.writeInt(count);
+		append();
+	}
+
+	void moved(int from, int to) throws IOException {
+		record.writeByte(OP_MOVE);
+		record.writeInt(from);
+		record.writeInt(to);
+		append();
+	}
+
+	/**
+	 * @param index
+	 *            index of the now playing song or -1
+	 */
+	void playing(int index) throws IOException {
+		record.writeByte(OP_PLAYING);
+		record.writeInt(index);
+		append();
+	}
+
+	private void append() throws IOException {
+		if (out == null) throw new IOException("Queue journal is closed");
+		try {
+			buffer.writeTo(out);
+			records++;
+		}
+		finally {
+			buffer.reset();
+		}
+	}
+
+	/**
+	 * Replace the stored queue with a new snapshot and empty the journal.
+	 * 
+	 * The snapshot is written to a temporary file first, synced and renamed,
+	 * so a failure (even a power loss) leaves the previous snapshot and
+	 * journal intact.
+	 */
+	void compact(Song[] songs, int playing) throws IOException {
+		int next = generation + 1;
+
+		File tmp = new File(snapshotFile.getPath() + ".tmp");
+		FileOutputStream file = new FileOutputStream(tmp);
+		DataOutputStream s = new DataOutputStream(new BufferedOutputStream(file));
+		try {
+			s.writeInt(MAGIC);
+			s.writeInt(next);
+			s.writeInt(songs.length);
+			s.writeInt(playing);
+			for (Song song : songs) {
+				writeSong(s, song);
+			}
+			s.flush();
+			file.getFD().sync();
+		}
+		finally {
+			s.close();
+		}
+		if (!tmp.renameTo(snapshotFile)) throw new IOException("Can't write " + snapshotFile);
+		generation = next;
+
+		close();
+		out = new FileOutputStream(journalFile);
+		record.writeInt(MAGIC);
+		record.writeInt(generation);
+		append();
+		records = 0;
+	}
+
+	void close() throws IOException {
+		if (out != null) out.close();
+		out = null;
+	}
+}
@@ -0,0 +1,51 @@
+package com.michalkazior.simplemusicplayer;
+
+/**
+ * Immutable view of the play queue at a given version.
+ * 
+ * The version equals the sequence number of the last queue event included,
+ * see Player.Event.
+ */
+public class QueueSnapshot {
+	private final Song[] songs;
+	private final int playingIndex;
+	private final int version;
+
+	public QueueSnapshot(Song[] songs, int playingIndex, int version) {
+		this.songs = songs;
+		this.playingIndex = playingIndex;
+		this.version = version;
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	public int size() {
+		return songs.length;
+	}
+
+	public Song get(int index) {
+		return songs[index];
+	}
+
+	/**
+	 * Get all songs.
+	 * 
+	 * The array is shared and must not be modified.
+	 */
+	public Song[] getSongs() {
+		return songs;
+	}
+
+	/**
+	 * @return index of the now playing song or -1
+	 */
+	public int getPlayingIndex() {
+		return playingIndex;
+	}
+
+	public Song getPlaying() {
+		return playingIndex < 0 ? null : songs[playingIndex];
+	}
+}
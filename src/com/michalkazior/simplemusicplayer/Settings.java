@@ -0,0 +1,18 @@
+package com.michalkazior.simplemusicplayer;
+
+import android.os.Bundle;
+import android.preference.PreferenceActivity;
+
+/**
+ * Activity editing the preferences.
+ * 
+ * Preferences are read where they're used, e.g. by the Library when songs
+ * are requested next, so nothing needs to be notified here.
+ */
+public class Settings extends PreferenceActivity {
+	@Override
+	protected void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		addPreferencesFromResource(R.xml.preferences);
+	}
+}
@@ -0,0 +1,134 @@
+package com.michalkazior.simplemusicplayer;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+
+/**
+ * Compact binary encoding of snapshots for clients in other processes.
+ * 
+ * An encoded queue is the version and the playing index, followed by the
+ * songs in SongStore form. Directories are stored once and names are packed.
+ * The library is shared as the file Library saves anyway, see Library.read().
+ * 
+ * Small encodings go inline as a byte array. Larger ones are written to a
+ * file and sent as a read-only ParcelFileDescriptor, which the client maps.
+ * The data is then shared through the page cache. It is not copied through
+ * binder transactions, which are limited to 1MB.
+ */
+public class SnapshotCodec {
+	private static final int MAGIC = 0x534d5053; /* SMPS */
+
+	/**
+	 * Encodings up to this many bytes are passed inline.
+	 */
+	public static final int inlineLimit = 64 * 1024;
+
+	public static void writeQueue(DataOutputStream out, QueueSnapshot queue) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(queue.getVersion());
+		out.writeInt(queue.getPlayingIndex());
+
+		SongStore.Builder builder = new SongStore.Builder();
+		for (Song song : queue.getSongs()) {
+			builder.add(song.getId(), song.getPath(), song.getTitle());
+		}
+		builder.build().write(out);
+	}
+
+	/**
+	 * Decode a queue written by writeQueue().
+	 * 
+	 * Songs keep their ids, so they may be passed back to the Player.
+	 */
+	public static QueueSnapshot readQueue(ByteBuffer b) throws IOException {
+		int version, playing;
+		try {
+			if (b.getInt() != MAGIC) throw new IOException("Unknown queue format");
+			version = b.getInt();
+			playing = b.getInt();
+		}
+		catch (BufferUnderflowException e) {
+			throw new IOException("Truncated queue");
+		}
+
+		SongStore store = SongStore.read(b);
+		if (playing >= store.size()) throw new IOException("Bad playing index");
+
+		Song[] songs = new Song[store.size()];
+		for (int i = 0; i < songs.length; i++) {
+			songs[i] = new Song(store.getId(i), store.getPath(i), store.getTitle(i));
+		}
+		return new QueueSnapshot(songs, playing, version);
+	}
+
+	/**
+	 * Wrap an encoding so that it can be sent as Message data.
+	 * 
+	 * Up to inlineLimit bytes are put as "data". Anything larger is written
+	 * to the given file and put as "fd". The file is replaced by a rename, so
+	 * descriptors handed out earlier keep seeing their own data.
+	 */
+	public static Bundle pack(byte[] data, File file) throws IOException {
+		Bundle bundle = new Bundle();
+		if (data.length <= inlineLimit) {
+			bundle.putByteArray("data", data);
+			return bundle;
+		}
+
+		File tmp = File.createTempFile(file.getName(), null, file.getParentFile());
+		try {
+			FileOutputStream out = new FileOutputStream(tmp);
+			try {
+				out.write(data);
+			}
+			finally {
+				out.close();
+			}
+			if (!tmp.renameTo(file)) throw new IOException("Can't rename " + tmp);
+		}
+		finally {
+			tmp.delete();
+		}
+		bundle.putParcelable("fd", ParcelFileDescriptor.open(file,
+				ParcelFileDescriptor.MODE_READ_ONLY));
+		return bundle;
+	}
+
+	/**
+	 * Get the encoding wrapped by pack().
+	 * 
+	 * A passed descriptor is closed; the mapping stays valid.
+	 */
+	public static ByteBuffer unpack(Bundle bundle) throws IOException {
+		byte[] data = bundle.getByteArray("data");
+		if (data != null) return ByteBuffer.wrap(data);
+
+		ParcelFileDescriptor fd = bundle.getParcelable("fd");
+		if (fd == null) throw new IOException("No snapshot");
+		return map(new ParcelFileDescriptor.AutoCloseInputStream(fd));
+	}
+
+	/**
+	 * Map a whole file read-only.
+	 * 
+	 * The stream and its channel are closed; the mapping stays valid.
+	 */
+	public static ByteBuffer map(FileInputStream in) throws IOException {
+		try {
+			FileChannel c = in.getChannel();
+			return c.map(FileChannel.MapMode.READ_ONLY, 0, c.size());
+		}
+		finally {
+			in.close();
+		}
+	}
+}
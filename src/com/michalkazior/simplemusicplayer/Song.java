@@ -1,13 +1,21 @@
 package com.michalkazior.simplemusicplayer;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import android.os.Parcel;
 import android.os.Parcelable;
 
 public class Song implements Parcelable {
-	private static int nextId = 0;
+	/*
+	 * Songs are created by the playback thread, the Library's worker and the
+	 * UI alike, and SongTree relies on ids being unique.
+	 */
+	private static final AtomicInteger nextId = new AtomicInteger();
 	private int id;
 	private String path;
 	private String title; // todo
+	private String name;
+	private String parent;
 
 	public static final Parcelable.Creator<Song> CREATOR = new Creator<Song>() {
 		@Override
@@ -25,31 +33,62 @@ public class Song implements Parcelable {
 	}
 
 	public Song(String path, String title) {
-		this.id = nextId++;
+		this.id = nextId.getAndIncrement();
+		this.path = path;
+		this.title = title;
+		split();
+	}
+
+	/**
+	 * Recreate a song known to the Player, keeping its id.
+	 */
+	Song(int id, String path, String title) {
+		this.id = id;
 		this.path = path;
 		this.title = title;
+		split();
 	}
 
 	private Song(Parcel in) {
 		id = in.readInt();
 		path = in.readString();
 		title = in.readString();
+		split();
 	}
 
 	public Song(Song song) {
 		id = song.id;
 		path = song.path;
 		title = song.title;
+		name = song.name;
+		parent = song.parent;
 	}
 
 	public Song spawn() {
 		Song song = new Song();
-		song.id = nextId++;
+		song.id = nextId.getAndIncrement();
 		song.path = this.path;
 		song.title = this.title;
+		song.name = this.name;
+		song.parent = this.parent;
 		return song;
 	}
 
+	/**
+	 * Precompute display fields.
+	 * 
+	 * Same as File.getName() and File.getParent(), but done once per song
+	 * instead of every time a list row is bound. Parent directories are
+	 * interned since many songs share them.
+	 */
+	private void split() {
+		int slash = path.lastIndexOf('/');
+		name = path.substring(slash + 1);
+		if (slash < 0) parent = null;
+		else if (slash == 0) parent = "/";
+		else parent = path.substring(0, slash).intern();
+	}
+
 	public int getId() {
 		return id;
 	}
@@ -62,6 +101,20 @@ public class Song implements Parcelable {
 		return title;
 	}
 
+	/**
+	 * Get the filename without the directory.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Get the directory the file is in.
+	 */
+	public String getParent() {
+		return parent;
+	}
+
 	@Override
 	public int describeContents() {
 		return 0;
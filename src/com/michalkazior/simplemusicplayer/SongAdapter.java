@@ -1,6 +1,6 @@
 package com.michalkazior.simplemusicplayer;
 
-import java.io.File;
+import java.util.List;
 
 import android.content.Context;
 import android.view.LayoutInflater;
@@ -9,16 +9,16 @@ import android.view.ViewGroup;
 import android.widget.TextView;
 
 public class SongAdapter extends android.widget.BaseAdapter {
-	private Song[] songs;
+	private List<Song> songs;
 	private LayoutInflater li;
 
-	public SongAdapter(Context context, Song[] songs) {
+	public SongAdapter(Context context, List<Song> songs) {
 		super();
 		this.songs = songs;
 		this.li = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
 	}
 
-	public void setItems(Song[] songs) {
+	public void setItems(List<Song> songs) {
 		this.songs = songs;
 		notifyDataSetChanged();
 	}
@@ -26,32 +26,48 @@ public class SongAdapter extends android.widget.BaseAdapter {
 	@Override
 	public View getView(int position, View convertView, ViewGroup parent) {
 		View v = convertView;
+		ViewHolder holder;
 		if (v == null) {
 			v = li.inflate(R.layout.listitem, null);
+			holder = new ViewHolder(v);
+			v.setTag(holder);
 		}
-		if (position >= 0 && position < songs.length) {
-			Song s = songs[position];
-			File f = new File(s.getPath());
-			TextView tv1 = (TextView) v.findViewById(R.id.listItemTextView1);
-			TextView tv2 = (TextView) v.findViewById(R.id.listItemTextView2);
-			tv1.setText(f.getName());
-			tv2.setText(f.getParent());
+		else {
+			holder = (ViewHolder) v.getTag();
+		}
+		if (position >= 0 && position < songs.size()) {
+			Song s = songs.get(position);
+			holder.tv1.setText(s.getName());
+			holder.tv2.setText(s.getParent());
 		}
 		return v;
 	}
 
+	/**
+	 * Views of a list item, looked up once per inflated item.
+	 */
+	static class ViewHolder {
+		TextView tv1;
+		TextView tv2;
+
+		ViewHolder(View v) {
+			tv1 = (TextView) v.findViewById(R.id.listItemTextView1);
+			tv2 = (TextView) v.findViewById(R.id.listItemTextView2);
+		}
+	}
+
 	@Override
 	public int getCount() {
-		return songs.length;
+		return songs.size();
 	}
 
 	@Override
 	public Object getItem(int position) {
-		return songs[position];
+		return songs.get(position);
 	}
 
 	@Override
 	public long getItemId(int position) {
-		return songs[position].getId();
+		return songs.get(position).getId();
 	}
 }
\ No newline at end of file
@@ -0,0 +1,581 @@
+package com.michalkazior.simplemusicplayer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Inverted index over song paths.
+ * 
+ * A path is split into lowercase tokens at every non-alphanumeric character,
+ * so directory parts, filename words and the extension all become tokens. A
+ * song matches a query word if any of its tokens starts with that word.
+ * 
+ * Songs are referred to by their row in the SongStore the index has been
+ * built from. Posting lists are sorted, so results keep the store order.
+ * 
+ * Matches may be ranked by relevance, see Ranking.
+ * 
+ * The index is immutable once built and may be shared between threads.
+ */
+public class SongIndex {
+	private static final int[] none = {};
+
+	private SongStore store;
+	private String[] terms;
+	private int[][] postings;
+	private int[] all;
+
+	/*
+	 * Tokens of each directory in the store, kept for ranking.
+	 */
+	private String[][] dirTokens;
+
+	public SongIndex(SongStore store) {
+		HashMap<String, int[]> map = new HashMap<String, int[]>();
+		ArrayList<String> tokens = new ArrayList<String>();
+
+		/*
+		 * Directories are shared by many rows, so they're tokenized once.
+		 */
+		String[] dirs = store.getDirectories();
+		dirTokens = new String[dirs.length][];
+		for (int i = 0; i < dirs.length; i++) {
+			dirTokens[i] = dirs[i] == null ? new String[] {} : tokenize(dirs[i]);
+		}
+
+		for (int i = 0; i < store.size(); i++) {
+			tokens.clear();
+			for (String token : dirTokens[store.getDirectoryIndex(i)]) {
+				tokens.add(token);
+			}
+			tokenize(store.getChars(), store.getNameStart(i),
+					store.getNameStart(i) + store.getNameLength(i), tokens);
+
+			for (String token : tokens) {
+				int[] list = map.get(token);
+				if (list == null) {
+					list = new int[] { 0, 0, 0, 0, 0 };
+					map.put(token, list);
+				}
+
+				/*
+				 * list[0] holds the number of used entries. The same token may
+				 * appear several times within a path, but is posted once.
+				 */
+				int n = list[0];
+				if (n > 0 && list[n] == i) continue;
+				if (n + 1 == list.length) {
+					list = copy(list, 0, list.length * 2);
+					map.put(token, list);
+				}
+				list[++n] = i;
+				list[0] = n;
+			}
+		}
+
+		this.store = store;
+		terms = map.keySet().toArray(new String[] {});
+		Arrays.sort(terms);
+		postings = new int[terms.length][];
+		for (int i = 0; i < terms.length; i++) {
+			int[] list = map.get(terms[i]);
+			postings[i] = copy(list, 1, list[0] + 1);
+		}
+
+		all = new int[store.size()];
+		for (int i = 0; i < all.length; i++) {
+			all[i] = i;
+		}
+	}
+
+	public SongStore getStore() {
+		return store;
+	}
+
+	/**
+	 * Split a path or a filter phrase into lowercase tokens.
+	 */
+	public static String[] tokenize(String s) {
+		ArrayList<String> tokens = new ArrayList<String>();
+		tokenize(s.toCharArray(), 0, s.length(), tokens);
+		return tokens.toArray(new String[] {});
+	}
+
+	private static void tokenize(char[] s, int from, int to, ArrayList<String> tokens) {
+		int start = -1;
+
+		for (int i = from; i <= to; i++) {
+			boolean isToken = i < to && Character.isLetterOrDigit(s[i]);
+			if (isToken && start < 0) {
+				start = i;
+			}
+			else if (!isToken && start >= 0) {
+				char[] token = new char[i - start];
+				for (int j = 0; j < token.length; j++) {
+					token[j] = Character.toLowerCase(s[start + j]);
+				}
+				tokens.add(new String(token));
+				start = -1;
+			}
+		}
+	}
+
+	/**
+	 * Check a single row against query words without an index.
+	 * 
+	 * This is meant for small stores an index isn't worth building for.
+	 */
+	public static boolean matches(SongStore store, int row, String[] words) {
+		ArrayList<String> tokens = new ArrayList<String>();
+		String dir = store.getDirectory(row);
+		if (dir != null) tokenize(dir.toCharArray(), 0, dir.length(), tokens);
+		tokenize(store.getChars(), store.getNameStart(row),
+				store.getNameStart(row) + store.getNameLength(row), tokens);
+
+		for (String word : words) {
+			boolean isFound = false;
+			for (String token : tokens) {
+				if (token.startsWith(word)) {
+					isFound = true;
+					break;
+				}
+			}
+			if (!isFound) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Find songs matching all query words.
+	 * 
+	 * @param words
+	 *            tokenized query
+	 * @param within
+	 *            sorted candidate positions, or null to search all songs
+	 * @return sorted positions of matching songs
+	 */
+	public int[] find(String[] words, int[] within) {
+		int[] result = within;
+		int[] from = new int[words.length];
+		int[] to = new int[words.length];
+		Integer[] order = new Integer[words.length];
+
+		for (int i = 0; i < words.length; i++) {
+			from[i] = lowerBound(words[i]);
+			to[i] = lowerBound(words[i] + Character.MAX_VALUE);
+			order[i] = i;
+		}
+
+		/*
+		 * Start with the word yielding the shortest posting lists so that the
+		 * candidate set shrinks as early as possible.
+		 */
+		final long[] costs = new long[words.length];
+		for (int i = 0; i < words.length; i++) {
+			for (int j = from[i]; j < to[i]; j++) {
+				costs[i] += postings[j].length;
+			}
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return costs[a] < costs[b] ? -1 : (costs[a] > costs[b] ? 1 : 0);
+			}
+		});
+
+		for (int i : order) {
+			if (from[i] == to[i]) return none;
+			if (result == null) {
+				result = union(from[i], to[i]);
+			}
+			else {
+				result = intersect(result, from[i], to[i]);
+			}
+			if (result.length == 0) break;
+		}
+
+		return result == null ? all : result;
+	}
+
+	/**
+	 * Index of the first term not less than a given string.
+	 */
+	private int lowerBound(String s) {
+		int lo = 0, hi = terms.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (terms[mid].compareTo(s) < 0) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Merge posting lists of terms within [from, to).
+	 */
+	private int[] union(int from, int to) {
+		if (to - from == 1) return postings[from];
+
+		long[] bits = mark(from, to);
+		int count = 0;
+		for (long b : bits) {
+			count += Long.bitCount(b);
+		}
+
+		int[] result = new int[count];
+		int n = 0;
+		for (int i = 0; i < bits.length; i++) {
+			long b = bits[i];
+			while (b != 0) {
+				result[n++] = (i << 6) + Long.numberOfTrailingZeros(b);
+				b &= b - 1;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Keep only those candidates which are posted by terms within [from, to).
+	 */
+	private int[] intersect(int[] candidates, int from, int to) {
+		int[] result = new int[candidates.length];
+		int n = 0;
+
+		if (to - from == 1) {
+			int[] list = postings[from];
+			int j = 0;
+			for (int c : candidates) {
+				while (j < list.length && list[j] < c) j++;
+				if (j == list.length) break;
+				if (list[j] == c) result[n++] = c;
+			}
+		}
+		else {
+			long[] bits = mark(from, to);
+			for (int c : candidates) {
+				if ((bits[c >> 6] & (1L << c)) != 0) result[n++] = c;
+			}
+		}
+
+		return copy(result, 0, n);
+	}
+
+	private long[] mark(int from, int to) {
+		long[] bits = new long[(store.size() + 63) >> 6];
+		for (int i = from; i < to; i++) {
+			for (int p : postings[i]) {
+				bits[p >> 6] |= 1L << p;
+			}
+		}
+		return bits;
+	}
+
+	/**
+	 * Arrays.copyOfRange() is not available before API level 9.
+	 */
+	private static int[] copy(int[] a, int from, int to) {
+		int[] b = new int[to - from];
+		System.arraycopy(a, from, b, 0, Math.min(a.length, to) - from);
+		return b;
+	}
+
+	/**
+	 * Matches of a query ranked by relevance, handed out a page at a time.
+	 * 
+	 * Each query word scores by the best token it's a prefix of. A whole
+	 * filename word scores highest, then the beginning of a filename word,
+	 * then a whole directory name word and the beginning of one. A song's
+	 * score is the sum over all words. Ties keep the store order, i.e. newest
+	 * first.
+	 * 
+	 * A page is selected with a heap bounded by the page size. Matches are
+	 * visited in store order, so once the heap is full of songs scoring as
+	 * high as still possible, no later song can make it and the rest is
+	 * skipped. Scores are cached for the following pages.
+	 * 
+	 * With no query words, pages simply follow the store order.
+	 * 
+	 * A Ranking must not be used by more than one thread at a time.
+	 */
+	public class Ranking {
+		private static final int nameWord = 4;
+		private static final int namePrefix = 3;
+		private static final int dirWord = 2;
+		private static final int dirPrefix = 1;
+
+		private final String[] words;
+		private final int[] matches;
+
+		/*
+		 * Highest score a match may reach. A word scores nameWord only if
+		 * it's a whole token somewhere in the index, otherwise namePrefix at
+		 * best. Without this, the bound is out of reach whenever a word is
+		 * still being typed, and the selection never stops early.
+		 */
+		private final int best;
+
+		/*
+		 * Scores of matches and of directories for each word. Zero stands for
+		 * not computed yet, since a match scores at least 1 for every word.
+		 */
+		private int[] scores;
+		private int[] dirScores;
+
+		/*
+		 * Number of matches handed out and the key of the last one.
+		 */
+		private int handedOut = 0;
+		private long last = Long.MAX_VALUE;
+
+		private Ranking(String[] words, int[] matches) {
+			this.words = words;
+			this.matches = matches;
+
+			int best = 0;
+			for (String word : words) {
+				best += Arrays.binarySearch(terms, word) >= 0 ? nameWord : namePrefix;
+			}
+			this.best = best;
+		}
+
+		/**
+		 * Get the store the ranked positions refer to.
+		 */
+		public SongStore getStore() {
+			return store;
+		}
+
+		/**
+		 * Get the number of matches.
+		 */
+		public int size() {
+			return matches.length;
+		}
+
+		public boolean hasMore() {
+			return handedOut < matches.length;
+		}
+
+		/**
+		 * Get the next page of matches.
+		 * 
+		 * @param k
+		 *            page size
+		 * @return positions of songs in rank order, fewer than k at the end
+		 */
+		public int[] next(int k) {
+			k = Math.min(k, matches.length - handedOut);
+			if (k <= 0) return none;
+
+			int[] page = words.length == 0 ? copy(matches, handedOut, handedOut + k) : select(k);
+			handedOut += page.length;
+			return page;
+		}
+
+		/**
+		 * Get all matches in rank order, regardless of the pages handed out.
+		 */
+		public int[] all() {
+			if (words.length == 0) return matches;
+
+			long[] keys = new long[matches.length];
+			for (int i = 0; i < keys.length; i++) {
+				keys[i] = key(i);
+			}
+			Arrays.sort(keys);
+
+			int[] rows = new int[keys.length];
+			for (int i = 0; i < rows.length; i++) {
+				rows[i] = row(keys[keys.length - 1 - i]);
+			}
+			return rows;
+		}
+
+		/**
+		 * Select the k best matches ranked after the last one handed out.
+		 */
+		private int[] select(int k) {
+			long[] heap = new long[k];
+			int n = 0;
+			int cap = last == Long.MAX_VALUE ? best : (int) (last >>> 32);
+
+			for (int i = 0; i < matches.length; i++) {
+				long key = key(i);
+				if (key >= last) continue;
+
+				if (n < k) {
+					heap[n] = key;
+					siftUp(heap, n++);
+				}
+				else if (key > heap[0]) {
+					heap[0] = key;
+					siftDown(heap, n);
+				}
+				if (n == k && (int) (heap[0] >>> 32) == cap) break;
+			}
+
+			Arrays.sort(heap, 0, n);
+			int[] page = new int[n];
+			for (int i = 0; i < n; i++) {
+				page[i] = row(heap[n - 1 - i]);
+			}
+			if (n > 0) last = heap[0];
+			return page;
+		}
+
+		/*
+		 * Keys order matches by score, then by store order. A greater key
+		 * ranks higher.
+		 */
+		private long key(int i) {
+			if (scores == null) scores = new int[matches.length];
+			if (scores[i] == 0) scores[i] = score(matches[i]);
+			return ((long) scores[i] << 32) | (Integer.MAX_VALUE - matches[i]);
+		}
+
+		private int row(long key) {
+			return Integer.MAX_VALUE - (int) key;
+		}
+
+		private int score(int row) {
+			int dir = store.getDirectoryIndex(row);
+			int from = store.getNameStart(row);
+			int to = from + store.getNameLength(row);
+			int score = 0;
+			for (int i = 0; i < words.length; i++) {
+				score += Math.max(scoreName(store.getChars(), from, to, words[i]), scoreDir(dir, i));
+			}
+			return score;
+		}
+
+		/**
+		 * Score a word against filename tokens, which are matched within the
+		 * store's buffer so that nothing is allocated.
+		 */
+		private int scoreName(char[] s, int from, int to, String word) {
+			int best = 0;
+			int start = -1;
+			for (int i = from; i <= to; i++) {
+				boolean isToken = i < to && Character.isLetterOrDigit(s[i]);
+				if (isToken && start < 0) {
+					start = i;
+				}
+				else if (!isToken && start >= 0) {
+					if (i - start >= word.length() && startsWith(s, start, word)) {
+						if (i - start == word.length()) return nameWord;
+						best = namePrefix;
+					}
+					start = -1;
+				}
+			}
+			return best;
+		}
+
+		private int scoreDir(int dir, int word) {
+			if (dirScores == null) dirScores = new int[dirTokens.length * words.length];
+
+			int i = dir * words.length + word;
+			if (dirScores[i] == 0) {
+				int best = 0;
+				for (String token : dirTokens[dir]) {
+					if (token.equals(words[word])) {
+						best = dirWord;
+						break;
+					}
+					if (token.startsWith(words[word])) best = dirPrefix;
+				}
+
+				/* Stored off by one, zero means not computed */
+				dirScores[i] = best + 1;
+			}
+			return dirScores[i] - 1;
+		}
+	}
+
+	private static boolean startsWith(char[] s, int from, String word) {
+		for (int i = 0; i < word.length(); i++) {
+			if (Character.toLowerCase(s[from + i]) != word.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	/*
+	 * Binary min-heap helpers for Ranking.
+	 */
+	private static void siftUp(long[] heap, int i) {
+		long key = heap[i];
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (heap[parent] <= key) break;
+			heap[i] = heap[parent];
+			i = parent;
+		}
+		heap[i] = key;
+	}
+
+	private static void siftDown(long[] heap, int n) {
+		long key = heap[0];
+		int i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= n) break;
+			if (child + 1 < n && heap[child + 1] < heap[child]) child++;
+			if (key <= heap[child]) break;
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = key;
+	}
+
+	/**
+	 * Stateful filter over an index.
+	 * 
+	 * When a phrase refines the previous one, i.e. each previous word is a
+	 * prefix of some new word, the previous result is narrowed instead of
+	 * searching the whole index again.
+	 * 
+	 * A Filter must not be used by more than one thread at a time.
+	 */
+	public class Filter {
+		private String[] lastWords = null;
+		private int[] lastResult = null;
+
+		/**
+		 * @return sorted positions of songs matching all words of the phrase
+		 */
+		public int[] apply(String phrase) {
+			String[] words = tokenize(phrase);
+			int[] within = isRefinement(words) ? lastResult : null;
+
+			lastResult = find(words, within);
+			lastWords = words;
+			return lastResult;
+		}
+
+		/**
+		 * Same as apply(), but the matches are ranked.
+		 */
+		public Ranking rank(String phrase) {
+			int[] matches = apply(phrase);
+			return new Ranking(lastWords, matches);
+		}
+
+		private boolean isRefinement(String[] words) {
+			if (lastWords == null) return false;
+
+			for (String last : lastWords) {
+				boolean isFound = false;
+				for (String word : words) {
+					if (word.startsWith(last)) {
+						isFound = true;
+						break;
+					}
+				}
+				if (!isFound) return false;
+			}
+			return true;
+		}
+	}
+}
@@ -1,7 +1,7 @@
 package com.michalkazior.simplemusicplayer;
 
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import android.app.Activity;
 import android.content.ComponentName;
@@ -9,7 +9,10 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.ContextMenu;
 import android.view.KeyEvent;
 import android.view.Menu;
@@ -20,6 +23,8 @@ import android.view.ContextMenu.ContextMenuInfo;
 import android.view.View.OnClickListener;
 import android.view.View.OnKeyListener;
 import android.view.inputmethod.InputMethodManager;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.AdapterView;
@@ -31,18 +36,45 @@ import android.widget.ListView;
  * Activity for song searching and enqueueing.
  * 
  * The user may filter songs by a given phrase set. The filter matches songs
- * that contain all typed words.
+ * that contain all typed words, each as the beginning of a directory name,
+ * filename word or extension.
+ * 
+ * Matches are ranked, see SongIndex.Ranking. Only the first page is ranked
+ * up front; further pages are ranked as the list is scrolled towards its end.
  */
 public class SongList extends Activity {
 	private ListView availableSongsListView;
 	private EditText filterEditText;
 	private Button clearButton;
 	private Song selectedSong;
-	private Song[] allSongs = {};
-	private ArrayList<Song> filteredSongs = new ArrayList<Song>();
+	private SongStore allSongs = SongStore.EMPTY;
+	private SongIndex.Filter filter = null;
+	private SongIndex.Ranking ranking = null;
+	private boolean isPageLoading = false;
+	private Handler handler = new Handler();
+	private ExecutorService filterWorker = Executors.newSingleThreadExecutor();
+	private volatile int filterGeneration = 0;
 	private Player player = null;
+	private Library.Task loadTask = null;
 	public static Activity INSTANCE = null;
 
+	/**
+	 * Delay between the last keystroke and filtering, in msecs.
+	 */
+	private static final int filterDelay = 150;
+
+	/**
+	 * Number of matches ranked at a time.
+	 */
+	private static final int pageSize = 100;
+
+	private Runnable filterRunnable = new Runnable() {
+		@Override
+		public void run() {
+			updateAvailableSongsListView();
+		}
+	};
+
 	private ServiceConnection playerConnection = new ServiceConnection() {
 		@Override
 		public void onServiceDisconnected(ComponentName name) {
@@ -52,8 +84,7 @@ public class SongList extends Activity {
 		@Override
 		public void onServiceConnected(ComponentName name, IBinder service) {
 			player = ((Player.Proxy) service).getPlayer();
-			allSongs = player.getAllSongs();
-			updateAvailableSongsListView();
+			updateAllSongs();
 		}
 	};
 
@@ -74,7 +105,40 @@ public class SongList extends Activity {
 				view.showContextMenu();
 			}
 		});
-		availableSongsListView.setAdapter(new SongAdapter(this, new Song[] {}));
+		availableSongsListView.setAdapter(new LibraryAdapter(this));
+		availableSongsListView.setOnScrollListener(new OnScrollListener() {
+			@Override
+			public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+					int totalItemCount) {
+				if (firstVisibleItem + visibleItemCount >= totalItemCount - pageSize / 2) {
+					loadNextPage();
+				}
+			}
+
+			@Override
+			public void onScrollStateChanged(AbsListView view, int scrollState) {
+			}
+		});
+
+		/*
+		 * Filter as the user types. Keystrokes are debounced so that a burst
+		 * of typing yields a single search.
+		 */
+		filterEditText.addTextChangedListener(new TextWatcher() {
+			@Override
+			public void afterTextChanged(Editable s) {
+				handler.removeCallbacks(filterRunnable);
+				handler.postDelayed(filterRunnable, filterDelay);
+			}
+
+			@Override
+			public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+			}
+
+			@Override
+			public void onTextChanged(CharSequence s, int start, int before, int count) {
+			}
+		});
 
 		filterEditText.setOnKeyListener(new OnKeyListener() {
 			@Override
@@ -93,7 +157,6 @@ public class SongList extends Activity {
 			@Override
 			public void onClick(View v) {
 				filterEditText.setText("");
-				updateAvailableSongsListView();
 			}
 		});
 
@@ -110,39 +173,151 @@ public class SongList extends Activity {
 	@Override
 	protected void onResume() {
 		if (player != null) {
-			allSongs = player.getAllSongs();
-			updateAvailableSongsListView();
+			updateAllSongs();
 		}
 		super.onResume();
 	}
 
+	@Override
+	protected void onPause() {
+		if (loadTask != null) {
+			loadTask.cancel();
+			loadTask = null;
+		}
+		super.onPause();
+	}
+
 	@Override
 	protected void onDestroy() {
 		INSTANCE = null;
+		handler.removeCallbacks(filterRunnable);
+		filterWorker.shutdownNow();
 		super.onDestroy();
 	}
 
+	/**
+	 * Fetches all songs from the player.
+	 * 
+	 * Songs are loaded in the background and stream in as they arrive. The
+	 * player hands out the same store as long as the library has not changed,
+	 * in which case there's nothing to filter again.
+	 */
+	private void updateAllSongs() {
+		if (loadTask != null) loadTask.cancel();
+
+		loadTask = player.loadAllSongs(new Library.Listener() {
+			@Override
+			public void onSongsLoaded(SongStore store, SongIndex index, boolean isDone) {
+				if (isDone) loadTask = null;
+				if (store == allSongs) {
+					/* The saved store comes first, its index follows later */
+					if (filter == null && index != null) filter = index.new Filter();
+					return;
+				}
+
+				allSongs = store;
+				filter = index == null ? null : index.new Filter();
+				updateAvailableSongsListView();
+			}
+		});
+	}
+
 	/**
 	 * Updates the available songs list.
 	 * 
 	 * Updates the list accordingly to the entered filter phrase in the edit
-	 * text box.
+	 * text box. Matching runs on a worker thread. Results of a phrase which
+	 * has been superseded meanwhile are dropped.
 	 */
 	private void updateAvailableSongsListView() {
-		filteredSongs = new ArrayList<Song>();
-		String words[] = filterEditText.getText().toString().toLowerCase().split(" ");
-
-		for (Song song : allSongs) {
-			String name = song.getPath().toLowerCase();
-			boolean matches = true;
-			for (String word : words) {
-				if (!name.contains(word)) matches = false;
+		handler.removeCallbacks(filterRunnable);
+
+		final int generation = ++filterGeneration;
+		final String phrase = filterEditText.getText().toString();
+		final SongStore store = allSongs;
+		final SongIndex.Filter filter = this.filter;
+
+		filterWorker.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (generation != filterGeneration) return;
+
+				final SongIndex.Ranking ranking = filter == null ? null : filter.rank(phrase);
+				final int[] result = ranking == null ? match(store, phrase, generation) : ranking
+						.next(pageSize);
+				if (result == null) return;
+
+				handler.post(new Runnable() {
+					@Override
+					public void run() {
+						if (generation != filterGeneration) return;
+
+						SongList.this.ranking = ranking;
+						((LibraryAdapter) availableSongsListView.getAdapter()).setItems(store,
+								result);
+					}
+				});
 			}
-			if (matches) filteredSongs.add(song);
+		});
+	}
+
+	/**
+	 * Rank the next page of matches and append it to the list.
+	 * 
+	 * The ranking is only touched by the filter worker.
+	 */
+	private void loadNextPage() {
+		if (ranking == null || isPageLoading) return;
+
+		final int generation = filterGeneration;
+		final SongIndex.Ranking ranking = this.ranking;
+		isPageLoading = true;
+
+		filterWorker.execute(new Runnable() {
+			@Override
+			public void run() {
+				final int[] page = ranking.hasMore() ? ranking.next(pageSize) : null;
+
+				handler.post(new Runnable() {
+					@Override
+					public void run() {
+						isPageLoading = false;
+						if (generation != filterGeneration || ranking != SongList.this.ranking)
+							return;
+
+						if (page == null) {
+							/* Nothing left, stop asking */
+							SongList.this.ranking = null;
+							return;
+						}
+						((LibraryAdapter) availableSongsListView.getAdapter()).addItems(page);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Match songs against a phrase without an index.
+	 * 
+	 * Partial results arrive without an index. They are few enough to be
+	 * matched one by one and listed unranked. This is run by the filter
+	 * worker.
+	 * 
+	 * @return matching rows or null if the generation has become stale
+	 */
+	private int[] match(SongStore store, String phrase, int generation) {
+		int[] rows = new int[store.size()];
+		int n = 0;
+		String[] words = SongIndex.tokenize(phrase);
+		for (int i = 0; i < store.size(); i++) {
+			if ((i & 0xff) == 0 && generation != filterGeneration) return null;
+			if (SongIndex.matches(store, i, words)) rows[n++] = i;
 		}
 
-		((SongAdapter) availableSongsListView.getAdapter()).setItems(filteredSongs
-				.toArray(new Song[] {}));
+		int[] result = new int[n];
+		System.arraycopy(rows, 0, result, 0, n);
+		return result;
 	}
 
 	@Override
@@ -151,11 +326,7 @@ public class SongList extends Activity {
 				new OnMenuItemClickListener() {
 					@Override
 					public boolean onMenuItemClick(MenuItem item) {
-						boolean autoplay = player.getEnqueuedSongs().length == 0;
-						for (Song song : filteredSongs) {
-							player.enqueueSong(song.spawn(), -1);
-						}
-						if (autoplay) player.play();
+						enqueueAll();
 						return false;
 					}
 				});
@@ -163,6 +334,46 @@ public class SongList extends Activity {
 		return super.onCreateOptionsMenu(menu);
 	}
 
+	/**
+	 * Enqueue every match, in rank order.
+	 * 
+	 * Pages not listed yet are included, so the remaining matches are
+	 * ranked by the filter worker first.
+	 */
+	private void enqueueAll() {
+		final LibraryAdapter adapter = (LibraryAdapter) availableSongsListView.getAdapter();
+		final SongIndex.Ranking ranking = this.ranking;
+
+		filterWorker.execute(new Runnable() {
+			@Override
+			public void run() {
+				final int[] rows = ranking == null ? null : ranking.all();
+
+				handler.post(new Runnable() {
+					@Override
+					public void run() {
+						if (player == null) return;
+
+						Song[] songs;
+						if (rows != null) {
+							songs = new Song[rows.length];
+							for (int i = 0; i < songs.length; i++) {
+								songs[i] = ranking.getStore().getSong(rows[i]);
+							}
+						}
+						else {
+							songs = adapter.getSongs();
+						}
+
+						boolean autoplay = player.getQueue().size() == 0;
+						player.enqueueSongs(songs, -1);
+						if (autoplay) player.play();
+					}
+				});
+			}
+		});
+	}
+
 	@Override
 	public void onCreateContextMenu(ContextMenu menu, View v, ContextMenuInfo menuInfo) {
 		AdapterContextMenuInfo info = (AdapterContextMenuInfo) menuInfo;
@@ -185,11 +396,8 @@ public class SongList extends Activity {
 				new OnMenuItemClickListener() {
 					@Override
 					public boolean onMenuItemClick(MenuItem item) {
-						boolean autoplay = player.getEnqueuedSongs().length == 0;
-						player.enqueueSong(
-								selectedSong.spawn(),
-								Arrays.asList(player.getEnqueuedSongs()).indexOf(
-										player.getPlaying()) + 1);
+						boolean autoplay = player.getQueue().size() == 0;
+						player.enqueueSongNext(selectedSong.spawn());
 						if (autoplay) player.play();
 						return false;
 					}
@@ -199,7 +407,7 @@ public class SongList extends Activity {
 				new OnMenuItemClickListener() {
 					@Override
 					public boolean onMenuItemClick(MenuItem item) {
-						boolean autoplay = player.getEnqueuedSongs().length == 0;
+						boolean autoplay = player.getQueue().size() == 0;
 						player.enqueueSong(selectedSong.spawn(), -1);
 						if (autoplay) player.play();
 						return false;
@@ -1,10 +1,9 @@
 package com.michalkazior.simplemusicplayer;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Random;
 
 import com.michalkazior.simplemusicplayer.Player.State;
 
@@ -21,6 +20,9 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.Parcelable;
+import android.os.SystemClock;
+import android.util.Log;
 import android.view.ContextMenu;
 import android.view.MenuItem;
 import android.view.MenuItem.OnMenuItemClickListener;
@@ -28,6 +30,7 @@ import android.view.View;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.view.View.OnClickListener;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver.OnPreDrawListener;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.Button;
@@ -43,6 +46,8 @@ import android.widget.SeekBar.OnSeekBarChangeListener;
  * The user may manage the list of enqueued songs, play, pause.
  */
 public class SongQueue extends Activity {
+	private static final String TAG = "SongQueue";
+
 	private Button playButton, skipButton;
 	private TextView songTimeTextView;
 	private SeekBar songSeekBar;
@@ -51,11 +56,71 @@ public class SongQueue extends Activity {
 	private Song selectedSong = null;
 	private boolean isEmpty = false;
 
+	/*
+	 * Local copy of the player's queue. It's kept up to date by applying
+	 * queue events and replaced by a snapshot whenever events went missing.
+	 */
+	private ArrayList<Song> enqueuedSongs = new ArrayList<Song>();
+	private Song playing = null;
+	private int queueSeq = 0;
+
+	/*
+	 * Playback state as of the last StateChanged event. While playing, the
+	 * position is extrapolated from the time it was taken at.
+	 */
+	private State state = State.IS_STOPPED;
+	private boolean isPausePending = false;
+	private int position = 0;
+	private int duration = 0;
+	private long positionTime = 0;
+
 	private boolean isDraggingSeekBar = false;
 	private int seekZoomBegin = 0;
 	private int seekZoomLength = 0;
-	private Timer seekZoomTimer = new Timer();
-	private Timer updateTimer = null;
+	private Random random = new Random();
+
+	/*
+	 * All UI timing is done by posting to this handler. Nothing is posted
+	 * while the activity isn't visible.
+	 */
+	private Handler handler = new Handler();
+	private boolean isVisible = false;
+
+	/*
+	 * Startup timing, counted from onCreate(). Both the first frame and the
+	 * first frame showing the queue restored by the Player are recorded in
+	 * Stats. The listener is dropped after startupTimeout even if the queue
+	 * never showed up, e.g. when the Player can't be bound.
+	 */
+	private static final int startupTimeout = 10000;
+	private long createTime = 0;
+	private boolean isFirstFrameDrawn = false;
+
+	private OnPreDrawListener startupListener = new OnPreDrawListener() {
+		@Override
+		public boolean onPreDraw() {
+			long elapsed = SystemClock.uptimeMillis() - createTime;
+			if (!isFirstFrameDrawn) {
+				isFirstFrameDrawn = true;
+				Stats.firstFrame.add(elapsed);
+				Log.i(TAG, "First frame after " + elapsed + "ms");
+			}
+
+			/*
+			 * Any queue version past 0 includes the restored queue, or the
+			 * failure to restore it.
+			 */
+			if (queueSeq > 0) {
+				Stats.firstQueue.add(elapsed);
+				Log.i(TAG, "Queue shown after " + elapsed + "ms");
+			}
+			else if (elapsed < startupTimeout) {
+				return true;
+			}
+			getWindow().getDecorView().getViewTreeObserver().removeOnPreDrawListener(this);
+			return true;
+		}
+	};
 
 	private Player player = null;
 	private ServiceConnection playerConnection = new ServiceConnection() {
@@ -68,27 +133,86 @@ public class SongQueue extends Activity {
 		public void onServiceConnected(ComponentName name, IBinder service) {
 			player = ((Player.Proxy) service).getPlayer();
 			player.registerHandler(playerMessenger);
-			updateEnqueuedSongs();
-			updatePlaying();
+			fetchEnqueuedSongs();
+			syncPlaying(player.getPosition(), player.getDuration());
 		}
 	};
 
 	private Messenger playerMessenger = new Messenger(new Handler() {
 		@Override
 		public void handleMessage(Message msg) {
+			/* Signals sent before unregistering may still arrive */
+			if (player == null) return;
+
 			switch (Player.Event.values()[msg.what]) {
-				case EnqueuedSongsChanged:
-					updateEnqueuedSongs();
+				case StateChanged:
+					syncPlaying(msg.arg1, msg.arg2);
 					break;
 
-				case StateChanged:
-					enqueuedSongsListView.invalidateViews();
-					updatePlaying();
+				default:
+					applyQueueEvent(msg);
 					break;
 			}
 		}
 	});
 
+	/**
+	 * Apply a queue event to the local copy of the queue.
+	 * 
+	 * Events already covered by the last snapshot are skipped. A gap in
+	 * sequence numbers, or a change of the queue as a whole, makes us fetch a
+	 * new snapshot.
+	 */
+	private void applyQueueEvent(Message msg) {
+		Player.Event e = Player.Event.values()[msg.what];
+		Bundle data = msg.getData();
+		int seq = data.getInt("seq");
+
+		if (seq <= queueSeq) return;
+		if (seq != queueSeq + 1 || e == Player.Event.EnqueuedSongsChanged) {
+			fetchEnqueuedSongs();
+			return;
+		}
+		queueSeq = seq;
+
+		switch (e) {
+			case SongsInserted:
+				Parcelable[] songs = data.getParcelableArray("songs");
+				for (int i = 0; i < songs.length; i++) {
+					enqueuedSongs.add(msg.arg1 + i, (Song) songs[i]);
+				}
+				break;
+
+			case SongsRemoved:
+				for (int i = 0; i < msg.arg2; i++) {
+					enqueuedSongs.remove(msg.arg1);
+				}
+				break;
+
+			case SongMoved:
+				enqueuedSongs.add(msg.arg2, enqueuedSongs.remove(msg.arg1));
+				break;
+
+			case PlayingChanged:
+				playing = data.getParcelable("song");
+				break;
+		}
+		updateEnqueuedSongs();
+	}
+
+	/**
+	 * Replace the local copy of the queue with a snapshot.
+	 */
+	private void fetchEnqueuedSongs() {
+		QueueSnapshot queue = player.getQueue();
+
+		playing = queue.getPlaying();
+		queueSeq = queue.getVersion();
+		enqueuedSongs.clear();
+		enqueuedSongs.addAll(Arrays.asList(queue.getSongs()));
+		updateEnqueuedSongs();
+	}
+
 	private void updateEnqueuedSongs() {
 		/*
 		 * Avoid updating when we display 'no songs enqueued'. It will get
@@ -97,64 +221,52 @@ public class SongQueue extends Activity {
 		 * Also avoiding setupEmptyView() here fixes the case of end of playback
 		 * which would not switch to 'no songs enqueued' screen.
 		 */
-		if (player.getEnqueuedSongs().length == 0) {
+		if (enqueuedSongs.size() == 0) {
 			setupEmptyView();
 			return;
 		}
 
 		setupContentView();
-		((MainSongAdapter) enqueuedSongsListView.getAdapter()).setItems(player.getEnqueuedSongs());
+		((MainSongAdapter) enqueuedSongsListView.getAdapter()).notifyDataSetChanged();
 	}
 
-	private void updateTimerStart() {
-		if (updateTimer != null) return;
-
-		updateTimer = new Timer();
-		updateTimer.schedule(new TimerTask() {
-			@Override
-			public void run() {
-				SongQueue.this.runOnUiThread(new Runnable() {
-					@Override
-					public void run() {
-						updatePlaying();
-					}
-				});
-			}
-		}, 1000, 1000);
+	/**
+	 * Take the playback state and position from the player.
+	 */
+	private void syncPlaying(int position, int duration) {
+		this.state = player.getState();
+		this.isPausePending = player.isPausePending();
+		this.position = position;
+		this.duration = duration;
+		this.positionTime = SystemClock.uptimeMillis();
+		updatePlaying();
 	}
 
-	private void updateTimerStop() {
-		if (updateTimer == null) return;
-
-		updateTimer.cancel();
-		updateTimer.purge();
-		updateTimer = null;
-	}
+	private final Runnable updateRunnable = new Runnable() {
+		@Override
+		public void run() {
+			updatePlaying();
+		}
+	};
 
 	private void updatePlaying() {
-		if (isEmpty) {
-			updateTimerStop();
-			return;
-		}
+		handler.removeCallbacks(updateRunnable);
+		if (isEmpty) return;
 
-		int duration = player.getDuration();
-		int position = player.getPosition();
-		State state = player.getState();
+		int position = this.position;
+		if (state == State.IS_PLAYING) {
+			position += SystemClock.uptimeMillis() - positionTime;
+			if (position > duration) position = duration;
 
-		switch (state) {
-			case IS_PLAYING:
-				updateTimerStart();
-				break;
-			case IS_STOPPED:
-			case IS_PAUSED:
-				updateTimerStop();
-				break;
+			/* Tick when the displayed second changes */
+			if (isVisible) handler.postDelayed(updateRunnable, 1000 - position % 1000);
 		}
 
 		switch (state) {
 			case IS_STOPPED:
 				updatePosition(0, 0);
 				break;
+			case IS_PREPARING:
 			case IS_PLAYING:
 			case IS_PAUSED:
 				if (!isDraggingSeekBar) updatePosition(position, duration);
@@ -165,6 +277,10 @@ public class SongQueue extends Activity {
 			case IS_STOPPED:
 				songTimeTextView.setText("");
 				break;
+			case IS_PREPARING:
+				/* E.g. resuming from a checkpoint, which is left paused */
+				playButton.setText(isPausePending ? R.string.button_play : R.string.button_pause);
+				break;
 			case IS_PLAYING:
 				playButton.setText(R.string.button_pause);
 				break;
@@ -174,39 +290,32 @@ public class SongQueue extends Activity {
 		}
 	}
 
-	private void seekZoomTimerStart() {
-		seekZoomTimerStop();
-
-		seekZoomTimer.schedule(new TimerTask() {
-			@Override
-			public void run() {
-				int position = SongQueue.this.songSeekBar.getProgress();
-				int duration = SongQueue.this.songSeekBar.getMax();
-				int start = position - (duration / 4);
-				int length = duration / 2;
+	private final Runnable seekZoomRunnable = new Runnable() {
+		@Override
+		public void run() {
+			int position = songSeekBar.getProgress();
+			int duration = songSeekBar.getMax();
+			int start = position - (duration / 4);
+			int length = duration / 2;
 
-				if (start < 0) start = 0;
-				if (start + length > duration) length = duration - start;
+			if (start < 0) start = 0;
+			if (start + length > duration) length = duration - start;
 
-				seekZoomBegin += start;
-				seekZoomLength = length;
+			seekZoomBegin += start;
+			seekZoomLength = length;
+			updatePosition(seekZoomLength / 2, seekZoomLength);
 
-				SongQueue.this.runOnUiThread(new Runnable() {
-					@Override
-					public void run() {
-						updatePosition(seekZoomLength / 2, seekZoomLength);
-					}
-				});
+			seekZoomTimerStart();
+		}
+	};
 
-				seekZoomTimerStart();
-			}
-		}, 1000);
+	private void seekZoomTimerStart() {
+		handler.removeCallbacks(seekZoomRunnable);
+		handler.postDelayed(seekZoomRunnable, 1000);
 	}
 
 	private void seekZoomTimerStop() {
-		seekZoomTimer.cancel();
-		seekZoomTimer.purge();
-		seekZoomTimer = new Timer();
+		handler.removeCallbacks(seekZoomRunnable);
 	}
 
 	private void seekZoomReset() {
@@ -233,12 +342,16 @@ public class SongQueue extends Activity {
 		songSeekBar = (SeekBar) findViewById(R.id.songSeekBar);
 		enqueuedSongsListView = (ListView) findViewById(R.id.enqueuedSongs);
 
-		enqueuedSongsListView.setAdapter(new MainSongAdapter(this, player.getEnqueuedSongs()));
+		enqueuedSongsListView.setAdapter(new MainSongAdapter(this, enqueuedSongs));
 
 		playButton.setOnClickListener(new OnClickListener() {
 			@Override
 			public void onClick(View v) {
 				switch (SongQueue.this.player.getState()) {
+					case IS_PREPARING:
+						if (SongQueue.this.player.isPausePending()) SongQueue.this.player.play();
+						else SongQueue.this.player.stop();
+						break;
 					case IS_PLAYING:
 						SongQueue.this.player.stop();
 						break;
@@ -295,6 +408,7 @@ public class SongQueue extends Activity {
 		});
 
 		isEmpty = false;
+		updatePlaying();
 	}
 
 	/**
@@ -311,7 +425,7 @@ public class SongQueue extends Activity {
 		if (duration > 0) {
 			String seekZoomText = "";
 			int start = position + seekZoomBegin;
-			int songDuration = player.getDuration();
+			int songDuration = this.duration;
 
 			if (seekZoomLength != 0) {
 				seekZoomText = String.format("[%d:%02d - %d:%02d]", (seekZoomBegin / 1000) / 60,
@@ -335,12 +449,38 @@ public class SongQueue extends Activity {
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
+		createTime = SystemClock.uptimeMillis();
 		setupEmptyView();
+		getWindow().getDecorView().getViewTreeObserver().addOnPreDrawListener(startupListener);
 
 		startService(new Intent(SongQueue.this, Player.class));
 		bindService(new Intent(SongQueue.this, Player.class), playerConnection, 0);
 	}
 
+	@Override
+	protected void onResume() {
+		super.onResume();
+		isVisible = true;
+		if (player != null) syncPlaying(player.getPosition(), player.getDuration());
+	}
+
+	@Override
+	protected void onDestroy() {
+		if (player != null) player.unregisterHandler(playerMessenger);
+		super.onDestroy();
+	}
+
+	@Override
+	protected void onPause() {
+		isVisible = false;
+		handler.removeCallbacks(updateRunnable);
+		if (isDraggingSeekBar) {
+			isDraggingSeekBar = false;
+			seekZoomReset();
+		}
+		super.onPause();
+	}
+
 	@Override
 	public void onCreateContextMenu(ContextMenu menu, View v, ContextMenuInfo menuInfo) {
 		AdapterContextMenuInfo info = (AdapterContextMenuInfo) menuInfo;
@@ -362,9 +502,7 @@ public class SongQueue extends Activity {
 					@Override
 					public boolean onMenuItemClick(MenuItem item) {
 						player.removeSong(selectedSong);
-						player.enqueueSong(selectedSong, Arrays
-								.asList(player.getEnqueuedSongs())
-								.indexOf(player.getPlaying()) + 1);
+						player.enqueueSongNext(selectedSong);
 						return false;
 					}
 				});
@@ -422,10 +560,7 @@ public class SongQueue extends Activity {
 										new Dialog.OnClickListener() {
 											@Override
 											public void onClick(DialogInterface dialog, int which) {
-												player.stop();
-												for (Song song : player.getEnqueuedSongs()) {
-													player.removeSong(song);
-												}
+												player.clearEnqueuedSongs();
 											}
 										})
 								.show();
@@ -445,21 +580,17 @@ public class SongQueue extends Activity {
 										new Dialog.OnClickListener() {
 											@Override
 											public void onClick(DialogInterface dialog, int which) {
-												player.stop();
-
-												List<Song> songsNew = Arrays.asList(player
-														.getEnqueuedSongs());
-												for (Song song : songsNew) {
-													player.removeSong(song);
-												}
-												Collections.shuffle(songsNew);
-												for (Song song : songsNew) {
-													player.enqueueSong(song, -1);
-												}
-												if (songsNew.size() > 0) {
-													player.setPlaying(songsNew.get(0));
-													player.play();
+												int[] permutation = new int[player.getQueue()
+														.size()];
+												for (int i = 0; i < permutation.length; i++) {
+													int j = random.nextInt(i + 1);
+													permutation[i] = permutation[j];
+													permutation[j] = i;
 												}
+
+												player.reset();
+												player.permuteEnqueuedSongs(permutation);
+												if (permutation.length > 0) player.play();
 											}
 										})
 								.show();
@@ -477,6 +608,24 @@ public class SongQueue extends Activity {
 					}
 				});
 
+		menu.add(R.string.option_menu_settings).setOnMenuItemClickListener(
+				new OnMenuItemClickListener() {
+					@Override
+					public boolean onMenuItemClick(MenuItem item) {
+						startActivity(new Intent(SongQueue.this, Settings.class));
+						return false;
+					}
+				});
+
+		menu.add(R.string.option_menu_diagnostics).setOnMenuItemClickListener(
+				new OnMenuItemClickListener() {
+					@Override
+					public boolean onMenuItemClick(MenuItem item) {
+						startActivity(new Intent(SongQueue.this, Diagnostics.class));
+						return false;
+					}
+				});
+
 		menu.add(R.string.option_menu_exit).setOnMenuItemClickListener(
 				new OnMenuItemClickListener() {
 					@Override
@@ -491,6 +640,8 @@ public class SongQueue extends Activity {
 											public void onClick(DialogInterface dialog, int which) {
 												if (SongList.INSTANCE != null)
 													SongList.INSTANCE.finish();
+												player.unregisterHandler(playerMessenger);
+												player = null;
 												unbindService(playerConnection);
 												stopService(new Intent(SongQueue.this, Player.class));
 												finish();
@@ -510,7 +661,7 @@ public class SongQueue extends Activity {
 	}
 
 	private class MainSongAdapter extends SongAdapter {
-		public MainSongAdapter(Context context, Song[] songs) {
+		public MainSongAdapter(Context context, List<Song> songs) {
 			super(context, songs);
 		}
 
@@ -518,9 +669,7 @@ public class SongQueue extends Activity {
 		public View getView(int position, View convertView, ViewGroup parent) {
 			View v = super.getView(position, convertView, parent);
 			if (v != null) {
-				Song[] songs = player.getEnqueuedSongs();
-
-				if (position < songs.length && Song.equals(player.getPlaying(), songs[position])) {
+				if (Song.equals(playing, (Song) getItem(position))) {
 					v.setBackgroundDrawable(getResources().getDrawable(
 							R.drawable.listitem_selector_first));
 				}
@@ -0,0 +1,377 @@
+package com.michalkazior.simplemusicplayer;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * Compact, column oriented song list.
+ * 
+ * Rows are kept as parallel arrays instead of Song objects. Directories are
+ * stored once in a shared dictionary and filenames are packed into a single
+ * char buffer. A title is stored only if it differs from the filename, which
+ * is rarely the case for MediaStore's DISPLAY_NAME.
+ * 
+ * Song objects are created on demand by getSong().
+ * 
+ * A store is immutable once built and may be shared between threads. It can be
+ * written to a stream with write() and read back with read(); the columns are
+ * transferred as they are, without going through Song objects.
+ */
+public class SongStore {
+	private int size;
+	private int[] ids;
+	private int[] dirs;
+	private String[] dirNames;
+	private char[] chars;
+	private int[] nameStarts;
+	private short[] nameLengths;
+	private int[] titleStarts;
+	private short[] titleLengths;
+
+	private SongStore() {
+	}
+
+	public static final SongStore EMPTY = new Builder().build();
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Get the media database id of a row.
+	 */
+	public int getId(int row) {
+		return ids[row];
+	}
+
+	/**
+	 * Get the directory a row's file is in.
+	 * 
+	 * Rows of the same directory share the same String instance.
+	 */
+	public String getDirectory(int row) {
+		return dirNames[dirs[row]];
+	}
+
+	/**
+	 * Get an index into the shared directory dictionary.
+	 */
+	public int getDirectoryIndex(int row) {
+		return dirs[row];
+	}
+
+	public String[] getDirectories() {
+		return dirNames;
+	}
+
+	/**
+	 * Get the buffer filenames are packed into.
+	 * 
+	 * See getNameStart() and getNameLength(). The buffer must not be modified.
+	 */
+	public char[] getChars() {
+		return chars;
+	}
+
+	public int getNameStart(int row) {
+		return nameStarts[row];
+	}
+
+	public int getNameLength(int row) {
+		return nameLengths[row];
+	}
+
+	public String getName(int row) {
+		return new String(chars, nameStarts[row], nameLengths[row]);
+	}
+
+	public String getTitle(int row) {
+		if (titleStarts[row] < 0) return getName(row);
+		return new String(chars, titleStarts[row], titleLengths[row]);
+	}
+
+	public String getPath(int row) {
+		String dir = getDirectory(row);
+		if (dir == null) return getName(row);
+		return new StringBuilder(dir.length() + 1 + nameLengths[row]).append(dir).append('/')
+				.append(chars, nameStarts[row], nameLengths[row]).toString();
+	}
+
+	/**
+	 * Create a new Song for a row.
+	 */
+	public Song getSong(int row) {
+		return new Song(getPath(row), getTitle(row));
+	}
+
+	private static final int MAGIC = 0x534d504c; /* SMPL */
+	private static final int FORMAT = 2;
+
+	/**
+	 * Write the store in a binary format.
+	 * 
+	 * Columns are written as they are, big endian. Strings are UTF-16, so
+	 * that read() can take them straight from a (mapped) buffer.
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(FORMAT);
+		out.writeInt(size);
+		out.writeInt(chars.length);
+		out.writeInt(dirNames.length);
+		for (String dir : dirNames) {
+			out.writeInt(dir == null ? -1 : dir.length());
+			if (dir != null) out.writeChars(dir);
+		}
+
+		ByteBuffer b = ByteBuffer.allocate(Math.max(size * 4, chars.length * 2));
+		b.asIntBuffer().put(ids);
+		out.write(b.array(), 0, size * 4);
+		b.asIntBuffer().put(dirs);
+		out.write(b.array(), 0, size * 4);
+		b.asIntBuffer().put(nameStarts);
+		out.write(b.array(), 0, size * 4);
+		b.asShortBuffer().put(nameLengths);
+		out.write(b.array(), 0, size * 2);
+		b.asIntBuffer().put(titleStarts);
+		out.write(b.array(), 0, size * 4);
+		b.asShortBuffer().put(titleLengths);
+		out.write(b.array(), 0, size * 2);
+		b.asCharBuffer().put(chars);
+		out.write(b.array(), 0, chars.length * 2);
+	}
+
+	/**
+	 * Bytes a row takes in all the columns.
+	 */
+	private static final int rowBytes = 4 + 4 + 4 + 2 + 4 + 2;
+
+	/**
+	 * Read a store written by write().
+	 * 
+	 * The buffer is advanced past the store. The data may come from another
+	 * process, so every count is checked against what's left in the buffer
+	 * before anything is allocated for it, and every row is checked to stay
+	 * within the buffers.
+	 * 
+	 * @throws IOException
+	 *             also if the data is truncated or inconsistent
+	 */
+	public static SongStore read(ByteBuffer b) throws IOException {
+		try {
+			if (b.getInt() != MAGIC || b.getInt() != FORMAT)
+				throw new IOException("Unknown song store format");
+
+			SongStore store = new SongStore();
+			int size = b.getInt();
+			int charCount = b.getInt();
+			int dirCount = b.getInt();
+			if (size < 0 || charCount < 0 || dirCount < 0
+					|| (long) size * rowBytes + charCount * 2L + dirCount * 4L > b.remaining())
+				throw new IOException("Bad song store");
+
+			store.size = size;
+			store.dirNames = new String[dirCount];
+			for (int i = 0; i < dirCount; i++) {
+				int length = b.getInt();
+				if (length < 0) continue;
+				if (length > b.remaining() / 2) throw new IOException("Bad song store directory");
+
+				char[] dir = new char[length];
+				b.asCharBuffer().get(dir);
+				skip(b, length * 2);
+				store.dirNames[i] = new String(dir);
+			}
+
+			b.asIntBuffer().get(store.ids = new int[size]);
+			skip(b, size * 4);
+			b.asIntBuffer().get(store.dirs = new int[size]);
+			skip(b, size * 4);
+			b.asIntBuffer().get(store.nameStarts = new int[size]);
+			skip(b, size * 4);
+			b.asShortBuffer().get(store.nameLengths = new short[size]);
+			skip(b, size * 2);
+			b.asIntBuffer().get(store.titleStarts = new int[size]);
+			skip(b, size * 4);
+			b.asShortBuffer().get(store.titleLengths = new short[size]);
+			skip(b, size * 2);
+			b.asCharBuffer().get(store.chars = new char[charCount]);
+			skip(b, charCount * 2);
+
+			for (int i = 0; i < size; i++) {
+				if (store.dirs[i] < 0 || store.dirs[i] >= dirCount
+						|| !isRange(store.nameStarts[i], store.nameLengths[i], charCount)
+						|| (store.titleStarts[i] >= 0 && !isRange(store.titleStarts[i],
+								store.titleLengths[i], charCount)))
+					throw new IOException("Bad song store row " + i);
+			}
+			return store;
+		}
+		catch (BufferUnderflowException e) {
+			throw new IOException("Truncated song store");
+		}
+	}
+
+	private static boolean isRange(int start, int length, int count) {
+		return start >= 0 && length >= 0 && start <= count - length;
+	}
+
+	private static void skip(ByteBuffer b, int n) {
+		b.position(b.position() + n);
+	}
+
+	/**
+	 * Assembles a SongStore row by row.
+	 */
+	public static class Builder {
+		private int size = 0;
+		private int[] ids = new int[16];
+		private int[] dirs = new int[16];
+		private int[] nameStarts = new int[16];
+		private short[] nameLengths = new short[16];
+		private int[] titleStarts = new int[16];
+		private short[] titleLengths = new short[16];
+		private char[] chars = new char[256];
+		private int charCount = 0;
+		private String[] dirNames = new String[16];
+		private int dirCount = 0;
+		private HashMap<String, Integer> dirIndexes = new HashMap<String, Integer>();
+
+		public Builder() {
+		}
+
+		/**
+		 * Start with the directory dictionary of an existing store so that
+		 * copied rows keep their directory indexes.
+		 */
+		public Builder(SongStore store) {
+			for (String dir : store.dirNames) {
+				addDirectory(dir);
+			}
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public void add(int id, String path, String title) {
+			int slash = path.lastIndexOf('/');
+			String dir = slash < 0 ? null : path.substring(0, slash);
+			int row = addRow(id, addDirectory(dir));
+
+			nameStarts[row] = charCount;
+			nameLengths[row] = (short) (path.length() - slash - 1);
+			append(path, slash + 1, path.length());
+
+			if (title == null || path.regionMatches(slash + 1, title, 0, title.length())
+					&& title.length() == nameLengths[row]) {
+				titleStarts[row] = -1;
+			}
+			else {
+				titleStarts[row] = charCount;
+				titleLengths[row] = (short) title.length();
+				append(title, 0, title.length());
+			}
+		}
+
+		/**
+		 * Copy a row of a store this builder has been seeded with.
+		 */
+		public void copy(SongStore store, int from) {
+			int row = addRow(store.ids[from], store.dirs[from]);
+
+			nameStarts[row] = charCount;
+			nameLengths[row] = store.nameLengths[from];
+			append(store.chars, store.nameStarts[from], store.nameLengths[from]);
+
+			if (store.titleStarts[from] < 0) {
+				titleStarts[row] = -1;
+			}
+			else {
+				titleStarts[row] = charCount;
+				titleLengths[row] = store.titleLengths[from];
+				append(store.chars, store.titleStarts[from], store.titleLengths[from]);
+			}
+		}
+
+		public SongStore build() {
+			SongStore store = new SongStore();
+			store.size = size;
+			store.ids = grow(ids, size);
+			store.dirs = grow(dirs, size);
+			store.nameStarts = grow(nameStarts, size);
+			store.nameLengths = grow(nameLengths, size);
+			store.titleStarts = grow(titleStarts, size);
+			store.titleLengths = grow(titleLengths, size);
+			store.chars = new char[charCount];
+			System.arraycopy(chars, 0, store.chars, 0, charCount);
+			store.dirNames = new String[dirCount];
+			System.arraycopy(dirNames, 0, store.dirNames, 0, dirCount);
+			return store;
+		}
+
+		private int addDirectory(String dir) {
+			Integer index = dirIndexes.get(dir);
+			if (index != null) return index;
+
+			if (dirCount == dirNames.length) {
+				String[] a = new String[dirCount * 2];
+				System.arraycopy(dirNames, 0, a, 0, dirCount);
+				dirNames = a;
+			}
+			dirNames[dirCount] = dir;
+			dirIndexes.put(dir, dirCount);
+			return dirCount++;
+		}
+
+		private int addRow(int id, int dir) {
+			if (size == ids.length) {
+				int n = size * 2;
+				ids = grow(ids, n);
+				dirs = grow(dirs, n);
+				nameStarts = grow(nameStarts, n);
+				nameLengths = grow(nameLengths, n);
+				titleStarts = grow(titleStarts, n);
+				titleLengths = grow(titleLengths, n);
+			}
+			ids[size] = id;
+			dirs[size] = dir;
+			return size++;
+		}
+
+		private void reserve(int n) {
+			if (charCount + n <= chars.length) return;
+
+			char[] a = new char[Math.max(chars.length * 2, charCount + n)];
+			System.arraycopy(chars, 0, a, 0, charCount);
+			chars = a;
+		}
+
+		private void append(String s, int from, int to) {
+			reserve(to - from);
+			s.getChars(from, to, chars, charCount);
+			charCount += to - from;
+		}
+
+		private void append(char[] s, int from, int length) {
+			reserve(length);
+			System.arraycopy(s, from, chars, charCount, length);
+			charCount += length;
+		}
+
+		private static int[] grow(int[] a, int n) {
+			int[] b = new int[n];
+			System.arraycopy(a, 0, b, 0, Math.min(a.length, n));
+			return b;
+		}
+
+		private static short[] grow(short[] a, int n) {
+			short[] b = new short[n];
+			System.arraycopy(a, 0, b, 0, Math.min(a.length, n));
+			return b;
+		}
+	}
+}
@@ -0,0 +1,264 @@
+package com.michalkazior.simplemusicplayer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Indexed list of songs.
+ * 
+ * This is an implicit treap, i.e. a randomly balanced binary tree ordered by
+ * position with subtree sizes kept in nodes. Nodes are also reachable by song
+ * id and know their parent, so every operation below, including indexOf(),
+ * takes O(log n) expected time.
+ * 
+ * Songs are told apart by id. A song may be contained only once.
+ * 
+ * The class is not synchronized.
+ */
+public class SongTree {
+	private static class Node {
+		Song song;
+		int priority;
+		int size = 1;
+		Node left, right, parent;
+
+		Node(Song song, int priority) {
+			this.song = song;
+			this.priority = priority;
+		}
+	}
+
+	private Node root = null;
+	private HashMap<Integer, Node> nodes = new HashMap<Integer, Node>();
+	private Random random = new Random();
+
+	/*
+	 * Results of split(). Kept as fields to avoid allocating a pair for each
+	 * call.
+	 */
+	private Node splitLeft, splitRight;
+
+	/*
+	 * Next of the sorted priorities to be handed out by build().
+	 */
+	private int nextPriority;
+
+	public int size() {
+		return size(root);
+	}
+
+	public boolean contains(Song song) {
+		return song != null && nodes.containsKey(song.getId());
+	}
+
+	/**
+	 * Get a song at a given index.
+	 */
+	public Song get(int index) {
+		if (index < 0 || index >= size()) throw new IndexOutOfBoundsException();
+
+		Node n = root;
+		while (true) {
+			int left = size(n.left);
+			if (index < left) {
+				n = n.left;
+			}
+			else if (index > left) {
+				index -= left + 1;
+				n = n.right;
+			}
+			else {
+				return n.song;
+			}
+		}
+	}
+
+	/**
+	 * Get the index of a song.
+	 * 
+	 * @return -1 if the song isn't contained
+	 */
+	public int indexOf(Song song) {
+		Node n = song == null ? null : nodes.get(song.getId());
+		if (n == null) return -1;
+
+		int index = size(n.left);
+		for (; n.parent != null; n = n.parent) {
+			if (n.parent.right == n) index += size(n.parent.left) + 1;
+		}
+		return index;
+	}
+
+	/**
+	 * Insert a song at a given index.
+	 * 
+	 * A song which is already contained is moved.
+	 */
+	public void add(int index, Song song) {
+		if (contains(song)) {
+			remove(song);
+			if (index > size()) index = size();
+		}
+		if (index < 0 || index > size()) throw new IndexOutOfBoundsException();
+
+		Node n = new Node(song, random.nextInt());
+		nodes.put(song.getId(), n);
+
+		split(root, index);
+		Node right = splitRight;
+		root = merge(merge(splitLeft, n), right);
+		root.parent = null;
+	}
+
+	public void add(Song song) {
+		add(size(), song);
+	}
+
+	/**
+	 * Insert songs at a given index.
+	 * 
+	 * The new songs are built into a balanced subtree in one go and merged,
+	 * so this takes O(m log m + log n) rather than m separate insertions.
+	 * Songs which are already contained are moved.
+	 */
+	public void addAll(int index, Song[] songs) {
+		for (Song song : songs) {
+			if (contains(song)) {
+				remove(song);
+				if (index > size()) index = size();
+			}
+		}
+		if (index < 0 || index > size()) throw new IndexOutOfBoundsException();
+
+		Node[] batch = new Node[songs.length];
+		int n = 0;
+		for (Song song : songs) {
+			if (contains(song)) continue;
+
+			batch[n] = new Node(song, 0);
+			nodes.put(song.getId(), batch[n++]);
+		}
+
+		/*
+		 * Sorted random priorities handed out in post-order keep every parent
+		 * above its children, as the heap order requires.
+		 */
+		int[] priorities = new int[n];
+		for (int i = 0; i < n; i++) {
+			priorities[i] = random.nextInt();
+		}
+		Arrays.sort(priorities);
+		nextPriority = 0;
+		Node middle = build(batch, 0, n, priorities);
+
+		split(root, index);
+		Node right = splitRight;
+		root = merge(merge(splitLeft, middle), right);
+		if (root != null) root.parent = null;
+	}
+
+	/**
+	 * Remove a song.
+	 * 
+	 * @return false if the song isn't contained
+	 */
+	public boolean remove(Song song) {
+		int index = indexOf(song);
+		if (index < 0) return false;
+
+		nodes.remove(song.getId());
+		split(root, index);
+		Node left = splitLeft;
+		split(splitRight, 1);
+		root = merge(left, splitRight);
+		if (root != null) root.parent = null;
+		return true;
+	}
+
+	public void clear() {
+		root = null;
+		nodes.clear();
+	}
+
+	/**
+	 * Get all songs in order.
+	 */
+	public Song[] toArray() {
+		Song[] songs = new Song[size()];
+		fill(root, songs, 0);
+		return songs;
+	}
+
+	private static int fill(Node n, Song[] songs, int index) {
+		while (n != null) {
+			index = fill(n.left, songs, index);
+			songs[index++] = n.song;
+			n = n.right;
+		}
+		return index;
+	}
+
+	private Node build(Node[] batch, int from, int to, int[] priorities) {
+		if (from >= to) return null;
+
+		int mid = (from + to) >>> 1;
+		Node n = batch[mid];
+		n.left = build(batch, from, mid, priorities);
+		n.right = build(batch, mid + 1, to, priorities);
+		n.priority = priorities[nextPriority++];
+		update(n);
+		return n;
+	}
+
+	private static int size(Node n) {
+		return n == null ? 0 : n.size;
+	}
+
+	private static void update(Node n) {
+		n.size = 1 + size(n.left) + size(n.right);
+		if (n.left != null) n.left.parent = n;
+		if (n.right != null) n.right.parent = n;
+	}
+
+	/**
+	 * Split a tree into the first k nodes and the rest.
+	 * 
+	 * Results are stored in splitLeft and splitRight.
+	 */
+	private void split(Node n, int k) {
+		if (n == null) {
+			splitLeft = splitRight = null;
+		}
+		else if (size(n.left) < k) {
+			split(n.right, k - size(n.left) - 1);
+			n.right = splitLeft;
+			update(n);
+			splitLeft = n;
+		}
+		else {
+			split(n.left, k);
+			n.left = splitRight;
+			update(n);
+			splitRight = n;
+		}
+		if (splitLeft != null) splitLeft.parent = null;
+		if (splitRight != null) splitRight.parent = null;
+	}
+
+	private Node merge(Node a, Node b) {
+		if (a == null) return b;
+		if (b == null) return a;
+
+		if (a.priority > b.priority) {
+			a.right = merge(a.right, b);
+			update(a);
+			return a;
+		}
+		else {
+			b.left = merge(a, b.left);
+			update(b);
+			return b;
+		}
+	}
+}
@@ -0,0 +1,187 @@
+package com.michalkazior.simplemusicplayer;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms for diagnostics.
+ * 
+ * Recording costs a few atomic operations and never allocates, so it's always
+ * on. Nothing is computed or formatted until dump() is called, see
+ * Player.dump() and the Diagnostics activity.
+ * 
+ * Values are kept for the lifetime of the process.
+ */
+class Stats {
+	/**
+	 * Distribution of values in power of two buckets.
+	 * 
+	 * Bucket 0 counts zeros, bucket i counts values in [2^(i-1), 2^i).
+	 * Percentiles are therefore reported as the upper bound of their bucket.
+	 */
+	static class Histogram {
+		private static final int buckets = 32;
+
+		private final String name;
+		private final String unit;
+		private final AtomicIntegerArray counts = new AtomicIntegerArray(buckets);
+		private final AtomicLong sum = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		Histogram(String name, String unit) {
+			this.name = name;
+			this.unit = unit;
+		}
+
+		void add(long value) {
+			if (value < 0) value = 0;
+			counts.incrementAndGet(Math.min(64 - Long.numberOfLeadingZeros(value), buckets - 1));
+			sum.addAndGet(value);
+
+			long m = max.get();
+			while (value > m && !max.compareAndSet(m, value)) {
+				m = max.get();
+			}
+		}
+
+		void dump(PrintWriter out) {
+			int[] c = new int[buckets];
+			long n = 0;
+			for (int i = 0; i < buckets; i++) {
+				c[i] = counts.get(i);
+				n += c[i];
+			}
+			if (n == 0) {
+				out.println("  " + name + ": none");
+				return;
+			}
+			out.println(String.format("  %s: n=%d avg=%d p50<%s p90<%s p99<%s max=%d %s", name, n,
+					sum.get() / n, percentile(c, n, 50), percentile(c, n, 90),
+					percentile(c, n, 99), max.get(), unit));
+		}
+
+		private static String percentile(int[] c, long n, int p) {
+			long rank = (n * p + 99) / 100;
+			long seen = 0;
+			for (int i = 0; i < buckets; i++) {
+				seen += c[i];
+				if (seen >= rank) return i == 0 ? "1" : Long.toString(1L << i);
+			}
+			return "?";
+		}
+	}
+
+	static class Counter {
+		private final String name;
+		private final AtomicInteger count = new AtomicInteger();
+
+		Counter(String name) {
+			this.name = name;
+		}
+
+		void inc() {
+			count.incrementAndGet();
+		}
+
+		void dump(PrintWriter out) {
+			out.println("  " + name + ": " + count.get());
+		}
+	}
+
+	/*
+	 * Startup, see Player.onCreate() and SongQueue.onCreate().
+	 */
+	static final Histogram serviceCreate = new Histogram("service create", "ms");
+	static final Histogram serviceDeferred = new Histogram("service deferred start", "ms");
+	static final Histogram firstFrame = new Histogram("queue first frame", "ms");
+	static final Histogram firstQueue = new Histogram("queue first shown", "ms");
+
+	/*
+	 * Playback thread.
+	 */
+	static final Counter commands = new Counter("commands");
+	static final Histogram commandWait = new Histogram("command wait", "ms");
+	static final Histogram commandTime = new Histogram("command time", "us");
+
+	/*
+	 * Track switches.
+	 */
+	static final Histogram prepare = new Histogram("prepare", "ms");
+	static final Histogram prepareNext = new Histogram("prepare next", "ms");
+	static final Histogram switchTime = new Histogram("play to start", "ms");
+	static final Histogram gap = new Histogram("completion to next start", "ms");
+	static final Counter gaplessHits = new Counter("gapless hits");
+	static final Counter gaplessMisses = new Counter("gapless misses");
+	static final Counter playerErrors = new Counter("player errors");
+
+	/*
+	 * Clients.
+	 */
+	static final Counter eventsEmitted = new Counter("events emitted");
+	static final Counter eventsSent = new Counter("events sent");
+	static final Counter deadClients = new Counter("dead clients");
+	static final Histogram fanOut = new Histogram("fan-out", "us");
+
+	/*
+	 * Persistence.
+	 */
+	static final Counter journalRecords = new Counter("journal records");
+	static final Counter compactions = new Counter("journal compactions");
+	static final Counter checkpoints = new Counter("position checkpoints");
+	static final Histogram checkpointTime = new Histogram("checkpoint write", "ms");
+
+	/*
+	 * Library worker thread.
+	 */
+	static final Histogram fullQuery = new Histogram("full query", "ms");
+	static final Histogram updateQuery = new Histogram("update query", "ms");
+	static final Histogram restore = new Histogram("snapshot restore", "ms");
+	static final Histogram indexBuild = new Histogram("index build", "ms");
+	static final Histogram scan = new Histogram("file scan", "ms");
+
+	private Stats() {
+	}
+
+	static void dump(PrintWriter out) {
+		out.println("Startup:");
+		serviceCreate.dump(out);
+		serviceDeferred.dump(out);
+		firstFrame.dump(out);
+		firstQueue.dump(out);
+
+		out.println("Playback thread:");
+		commands.dump(out);
+		commandWait.dump(out);
+		commandTime.dump(out);
+
+		out.println("Track switches:");
+		prepare.dump(out);
+		prepareNext.dump(out);
+		switchTime.dump(out);
+		gap.dump(out);
+		gaplessHits.dump(out);
+		gaplessMisses.dump(out);
+		playerErrors.dump(out);
+
+		out.println("Clients:");
+		eventsEmitted.dump(out);
+		eventsSent.dump(out);
+		deadClients.dump(out);
+		fanOut.dump(out);
+
+		out.println("Persistence:");
+		journalRecords.dump(out);
+		compactions.dump(out);
+		checkpoints.dump(out);
+		checkpointTime.dump(out);
+
+		out.println("Library:");
+		fullQuery.dump(out);
+		updateQuery.dump(out);
+		restore.dump(out);
+		indexBuild.dump(out);
+		scan.dump(out);
+	}
+}